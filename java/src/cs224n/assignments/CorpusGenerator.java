@@ -0,0 +1,154 @@
+package cs224n.assignments;
+
+import java.io.*;
+import java.util.Map;
+
+import cs224n.util.CommandLineUtils;
+import cs224n.wordaligner.Alignment;
+import cs224n.wordaligner.LinkSet;
+import cs224n.wordaligner.SentencePair;
+import cs224n.wordaligner.SyntheticCorpus;
+
+/**
+ * Writes a synthetic parallel corpus (see SyntheticCorpus) in the layout
+ * WordAlignmentTester reads, for load and scale tests without the real data:
+ *
+ * <pre>
+ *   OUTPUT/LANGUAGE/training/FilePairs.training
+ *   OUTPUT/LANGUAGE/training/trainK.e, trainK.f, trainK.wa
+ *   OUTPUT/LANGUAGE/trial/trial.e, trial.f, trial.wa
+ *   OUTPUT/LANGUAGE/test/test.e, test.f, test.wa
+ * </pre>
+ *
+ * The .wa files hold the true alignment every sentence pair was generated
+ * from, all links sure, with target words generated by NULL linked to
+ * position 0.  Point the tester at it with -dataPath OUTPUT
+ * -language LANGUAGE.  Sentences are written as they are generated, so
+ * corpus size is limited only by disk.
+ *
+ * Flags: -output DIR (required), -language (french), -sentences (100000),
+ * -sentencesPerFile (100000), -trialSentences (500), -testSentences (500),
+ * -sourceVocabulary and -targetVocabulary (20000), -zipf (1.0),
+ * -minLength, -meanLength, -maxLength (1, 20, 60), -nullProbability (0.1),
+ * -noise (0.1), -seed (224).
+ */
+public class CorpusGenerator {
+
+  private final SyntheticCorpus generator;
+  private final String sourceExtension;
+
+  public CorpusGenerator(SyntheticCorpus generator, String language) {
+    this.generator = generator;
+    this.sourceExtension = WordAlignmentTester.GetLanguageExtension(language);
+  }
+
+  /**
+   * Writes numSentences sentence pairs to base.e, base.f and base.wa, with
+   * sentence IDs counting up from 1.
+   */
+  public void write(File directory, String base, int numSentences) throws IOException {
+    directory.mkdirs();
+    PrintWriter target = open(new File(directory, base + ".e"));
+    PrintWriter source = open(new File(directory, base + "." + sourceExtension));
+    PrintWriter gold = open(new File(directory, base + ".wa"));
+    for (int id = 1; id <= numSentences; id++) {
+      Alignment alignment = new Alignment();
+      SentencePair pair = generator.next(alignment);
+      writeSentence(target, id, pair.getTargetWords());
+      writeSentence(source, id, pair.getSourceWords());
+      // Positions are 1-based; 0 is the NULL word.  Target words generated
+      // by NULL get a NULL link, so every sentence has a gold line; the
+      // evaluator ignores links outside the alignment grid.
+      LinkSet links = alignment.getSureLinks();
+      for (int tgtIndex = 0; tgtIndex < pair.getTargetWords().size(); tgtIndex++) {
+        if (links.numSources(tgtIndex) == 0) {
+          writeLink(gold, id, tgtIndex + 1, 0);
+        }
+        for (int k = 0; k < links.numSources(tgtIndex); k++) {
+          writeLink(gold, id, tgtIndex + 1, links.getSource(tgtIndex, k) + 1);
+        }
+      }
+    }
+    close(target);
+    close(source);
+    close(gold);
+  }
+
+  private static void writeLink(PrintWriter gold, int id, int targetPosition, int sourcePosition) {
+    gold.print(id);
+    gold.print(' ');
+    gold.print(targetPosition);
+    gold.print(' ');
+    gold.print(sourcePosition);
+    gold.println(" S");
+  }
+
+  /**
+   * Writes a training directory of numSentences sentence pairs, split into
+   * files of at most sentencesPerFile pairs, and its FilePairs.training index.
+   */
+  public void writeTraining(File directory, int numSentences, int sentencesPerFile) throws IOException {
+    directory.mkdirs();
+    PrintWriter index = open(new File(directory, "FilePairs.training"));
+    for (int k = 1, written = 0; written < numSentences; k++) {
+      int n = Math.min(sentencesPerFile, numSentences - written);
+      write(directory, "train" + k, n);
+      index.println("train" + k + ".e train" + k + "." + sourceExtension);
+      written += n;
+    }
+    close(index);
+  }
+
+  private static PrintWriter open(File file) throws IOException {
+    return new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16));
+  }
+
+  // PrintWriter swallows write errors; surface them once at the end.
+  private static void close(PrintWriter out) throws IOException {
+    out.close();
+    if (out.checkError()) {
+      throw new IOException("Error writing corpus");
+    }
+  }
+
+  private static void writeSentence(PrintWriter out, int id, Iterable<String> words) {
+    out.print("<s snum=");
+    out.print(id);
+    out.print('>');
+    for (String word : words) {
+      out.print(' ');
+      out.print(word);
+    }
+    out.println(" </s>");
+  }
+
+  private static int intFlag(Map<String, String> argMap, String flag, int defaultValue) {
+    return argMap.containsKey(flag) ? Integer.parseInt(argMap.get(flag)) : defaultValue;
+  }
+
+  public static void main(String[] args) throws IOException {
+    final Map<String,String> argMap = CommandLineUtils.simpleCommandLineParser(args);
+    if ( ! argMap.containsKey("-output")) {
+      System.err.println("Usage: java cs224n.assignments.CorpusGenerator -output DIR [-sentences N] [...]");
+      System.exit(1);
+    }
+    final String language = argMap.containsKey("-language") ? argMap.get("-language") : WordAlignmentTester.FRENCH;
+    final File root = new File(argMap.get("-output"), language);
+    final int numSentences = intFlag(argMap, "-sentences", 100000);
+
+    SyntheticCorpus generator = new SyntheticCorpus(intFlag(argMap, "-seed", 224));
+    generator.setVocabularySizes(intFlag(argMap, "-sourceVocabulary", 20000),
+        intFlag(argMap, "-targetVocabulary", 20000));
+    if (argMap.containsKey("-zipf")) generator.setZipfExponent(Double.parseDouble(argMap.get("-zipf")));
+    if (argMap.containsKey("-nullProbability")) generator.setNullProbability(Double.parseDouble(argMap.get("-nullProbability")));
+    if (argMap.containsKey("-noise")) generator.setNoise(Double.parseDouble(argMap.get("-noise")));
+    generator.setLengths(intFlag(argMap, "-minLength", 1), intFlag(argMap, "-meanLength", 20),
+        intFlag(argMap, "-maxLength", 60));
+
+    CorpusGenerator writer = new CorpusGenerator(generator, language);
+    writer.writeTraining(new File(root, "training"), numSentences, intFlag(argMap, "-sentencesPerFile", 100000));
+    writer.write(new File(root, "trial"), "trial", intFlag(argMap, "-trialSentences", 500));
+    writer.write(new File(root, "test"), "test", intFlag(argMap, "-testSentences", 500));
+    System.out.printf("Wrote %d training sentence pairs to %s%n", numSentences, root);
+  }
+}
@@ -2,17 +2,29 @@ package cs224n.assignments;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import cs224n.util.CommandLineUtils;
 import cs224n.util.Pair;
 import cs224n.wordaligner.Alignment;
+import cs224n.wordaligner.AlignmentEvaluator;
+import cs224n.wordaligner.BatchAligner;
+import cs224n.wordaligner.DiskCorpus;
+import cs224n.wordaligner.EMWordAligner;
+import cs224n.wordaligner.EStepKernel;
+import cs224n.wordaligner.GizaWriter;
+import cs224n.wordaligner.IndexedCorpus;
+import cs224n.wordaligner.MetricsWriter;
+import cs224n.wordaligner.SavableWordAligner;
 import cs224n.wordaligner.SentencePair;
+import cs224n.wordaligner.SymmetrizedWordAligner;
 import cs224n.wordaligner.WordAligner;
 
 /**
@@ -65,6 +77,44 @@ public final class WordAlignmentTester {
     final int maxTrainingSentences = argMap.containsKey("-trainSentences") ? 
         Integer.parseInt(argMap.get("-trainSentences")) : Integer.MAX_VALUE;
     final boolean verbose = argMap.containsKey("-verbose");
+    final int numThreads = argMap.containsKey("-threads") ?
+        Integer.parseInt(argMap.get("-threads")) : 1;
+    // Pruning of the translation table between EM iterations.
+    final double pruneThreshold = argMap.containsKey("-pruneThreshold") ?
+        Double.parseDouble(argMap.get("-pruneThreshold")) : 0.0;
+    final int pruneTopK = argMap.containsKey("-pruneTopK") ?
+        Integer.parseInt(argMap.get("-pruneTopK")) : 0;
+    final double pruneFloor = argMap.containsKey("-pruneFloor") ?
+        Double.parseDouble(argMap.get("-pruneFloor")) : EMWordAligner.DEFAULT_PRUNE_FLOOR;
+    // Write the metrics of every EM iteration, as CSV or (for a .json file) JSON lines.
+    final String metricsFile = argMap.containsKey("-metrics") ? argMap.get("-metrics") : "";
+    final boolean streamTraining = argMap.containsKey("-streamTraining");
+    // Compile the training data (test sentences included) into a binary corpus file and exit.
+    final String compileCorpusFile = argMap.containsKey("-compileCorpus") ? argMap.get("-compileCorpus") : "";
+    // Train from a compiled corpus instead of the training files.
+    final String corpusFile = argMap.containsKey("-corpus") ? argMap.get("-corpus") : "";
+    final boolean streamFiles = streamTraining || compileCorpusFile.length() > 0;
+    // Save the trained model, or load a saved one instead of training.
+    final String saveModelFile = argMap.containsKey("-saveModel") ? argMap.get("-saveModel") : "";
+    final String loadModelFile = argMap.containsKey("-loadModel") ? argMap.get("-loadModel") : "";
+    // Update the model (a loaded one, or from scratch) by online EM, with mini-batches of this size.
+    final int onlineBatchSize = argMap.containsKey("-online") ?
+        Integer.parseInt(argMap.get("-online")) : 0;
+    // Train on the corpus sorted into buckets of equal sentence lengths.
+    final boolean lengthBuckets = argMap.containsKey("-lengthBuckets");
+    // Train Model 1 over a precomputed index of each sentence's (source, target) pairs.
+    final boolean cooccurrenceIndex = argMap.containsKey("-cooccurrenceIndex");
+    // E-step kernel: scalar or unrolled.
+    final String kernel = argMap.containsKey("-kernel") ? argMap.get("-kernel") : "scalar";
+    // Run the E-step as a fork/join reduction over recursively halved pieces of the corpus.
+    final boolean forkJoin = argMap.containsKey("-forkJoin");
+    // Collect translation counts of all E-step threads in one shared table.
+    final boolean sharedCounts = argMap.containsKey("-sharedCounts");
+    // Exponent of the online EM step size.
+    final double stepSizeExponent = argMap.containsKey("-stepSizeExponent") ?
+        Double.parseDouble(argMap.get("-stepSizeExponent")) : EMWordAligner.DEFAULT_STEP_SIZE_EXPONENT;
+    // Align in both directions and combine them: intersection, union or grow-diag-final.
+    final String symmetrize = argMap.containsKey("-symmetrize") ? argMap.get("-symmetrize") : "";
     final String model = argMap.containsKey("-model") ? 
         argMap.get("-model") : "cs224n.wordaligner.BaselineWordAligner";
     final String language = argMap.containsKey("-language") ? argMap.get("-language") : FRENCH;
@@ -85,10 +135,19 @@ public final class WordAlignmentTester {
     if (! dataset.equals("")) System.out.println("Evaluation set: "+dataset);
     System.out.printf("Using up to %d training sentences.%n", maxTrainingSentences);
     List<SentencePair> trainingSentencePairs = new ArrayList<SentencePair>();
-    if ( !dataset.equalsIgnoreCase("miniTest") && maxTrainingSentences > 0) {
-      trainingSentencePairs = loadTrainingData(basePath+"/training", maxTrainingSentences);
+    // When streaming, the training files are read lazily, once per pass.
+    Iterable<SentencePair> trainingFileSentences = new ArrayList<SentencePair>();
+    // A loaded model only needs the training data to write its alignments.
+    final boolean readTraining = loadModelFile.length() == 0 || outputFile.length() > 0 || onlineBatchSize > 0;
+    if ( !dataset.equalsIgnoreCase("miniTest") && maxTrainingSentences > 0 && corpusFile.length() == 0
+        && readTraining) {
+      if (streamFiles) {
+        trainingFileSentences = streamTrainingData(basePath+"/training", maxTrainingSentences);
+      } else {
+        trainingSentencePairs = loadTrainingData(basePath+"/training", maxTrainingSentences);
+      }
     }
-    System.out.printf("Training set size: %d%n", trainingSentencePairs.size());
+    if (! streamFiles && corpusFile.length() == 0 && readTraining) System.out.printf("Training set size: %d%n", trainingSentencePairs.size());
 
     // Read test set, if specified.
     List<SentencePair> testSentencePairs = new ArrayList<SentencePair>();
@@ -108,18 +167,106 @@ public final class WordAlignmentTester {
     System.out.printf("Evaluation set size: %d%n", testSentencePairs.size());
 
     // Add the test sentences to the training data. This is an unsupervised learner.
-    trainingSentencePairs.addAll(testSentencePairs);
+    // A compiled corpus already contains them.
+    IndexedCorpus corpus = null;
+    if (corpusFile.length() > 0) {
+      System.out.println("Compiled corpus: " + corpusFile);
+      corpus = DiskCorpus.load(new File(corpusFile));
+    } else {
+      trainingSentencePairs.addAll(testSentencePairs);
+      if (streamFiles) {
+        corpus = DiskCorpus.build(concat(trainingFileSentences, trainingSentencePairs).iterator(),
+            compileCorpusFile.length() > 0 ? new File(compileCorpusFile) : null);
+      }
+    }
+    if (corpus != null) System.out.printf("Training set size: %d%n", corpus.size());
+    if (compileCorpusFile.length() > 0) {
+      System.out.println("Wrote compiled corpus: " + compileCorpusFile);
+      return;
+    }
+    final Iterable<SentencePair> trainingSentences = corpus != null ?
+        corpus.sentencePairs() : trainingSentencePairs;
 
     // Train model
     System.out.println("Model: "+model);
     WordAligner wordAligner = loadModel(model);
-    wordAligner.train(trainingSentencePairs);
+    if (symmetrize.length() > 0) {
+      if ( ! (wordAligner instanceof EMWordAligner)) {
+        throw new RuntimeException("Symmetrizing requires an EM aligner: " + model);
+      }
+      System.out.println("Symmetrizing with: " + symmetrize);
+      wordAligner = new SymmetrizedWordAligner((EMWordAligner) wordAligner, (EMWordAligner) loadModel(model),
+          SymmetrizedWordAligner.Heuristic.parse(symmetrize));
+    }
+    if (wordAligner instanceof EMWordAligner) {
+      System.out.printf("Training with %d thread(s).%n", numThreads);
+      ((EMWordAligner) wordAligner).setNumThreads(numThreads);
+      ((EMWordAligner) wordAligner).setPruning(pruneThreshold, pruneTopK, pruneFloor);
+      ((EMWordAligner) wordAligner).setStepSizeExponent(stepSizeExponent);
+      ((EMWordAligner) wordAligner).setLengthBucketing(lengthBuckets);
+      ((EMWordAligner) wordAligner).setCooccurrenceIndexing(cooccurrenceIndex);
+      ((EMWordAligner) wordAligner).setKernel(EStepKernel.parse(kernel));
+      ((EMWordAligner) wordAligner).setForkJoin(forkJoin);
+      ((EMWordAligner) wordAligner).setSharedCounts(sharedCounts);
+    }
+    MetricsWriter metrics = null;
+    if (metricsFile.length() > 0) {
+      if ( ! (wordAligner instanceof EMWordAligner)) {
+        throw new RuntimeException("Training metrics require an EM aligner: " + model);
+      }
+      try {
+        metrics = new MetricsWriter(new File(metricsFile));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      ((EMWordAligner) wordAligner).addTrainingListener(metrics);
+    }
+    if (loadModelFile.length() > 0) {
+      System.out.println("Loading model: " + loadModelFile);
+      asSavable(wordAligner, model).load(new File(loadModelFile));
+    }
+    if (onlineBatchSize > 0) {
+      if ( ! (wordAligner instanceof EMWordAligner)) {
+        throw new RuntimeException("Online training requires an EM aligner: " + model);
+      }
+      System.out.printf("Online training with mini-batches of %d sentence pairs.%n", onlineBatchSize);
+      trainOnline((EMWordAligner) wordAligner, trainingSentences, onlineBatchSize);
+    } else if (loadModelFile.length() == 0 && corpus != null) {
+      if ( ! (wordAligner instanceof EMWordAligner)) {
+        throw new RuntimeException("Training from an indexed corpus requires an EM aligner: " + model);
+      }
+      ((EMWordAligner) wordAligner).train(corpus);
+    } else if (loadModelFile.length() == 0) {
+      wordAligner.train(trainingSentencePairs);
+    }
+    if (metrics != null) metrics.close();
+    if (saveModelFile.length() > 0) {
+      System.out.println("Saving model: " + saveModelFile);
+      asSavable(wordAligner, model).save(new File(saveModelFile));
+    }
 
     // Run inference and evaluate
     if (outputFile.length() > 0) {
-      write(wordAligner, trainingSentencePairs, outputFile);
+      write(wordAligner, trainingSentences, outputFile, numThreads);
     } else {
-      test(wordAligner, testSentencePairs, goldAlignments, verbose);
+      test(wordAligner, testSentencePairs, goldAlignments, verbose, numThreads);
+    }
+  }
+
+  /**
+   * Feeds sentence pairs to aligner.update() in mini-batches of batchSize.
+   */
+  private static void trainOnline(EMWordAligner aligner, Iterable<SentencePair> sentencePairs, int batchSize) {
+    List<SentencePair> batch = new ArrayList<SentencePair>(batchSize);
+    for (SentencePair sentencePair : sentencePairs) {
+      batch.add(sentencePair);
+      if (batch.size() == batchSize) {
+        aligner.update(batch);
+        batch = new ArrayList<SentencePair>(batchSize);
+      }
+    }
+    if ( ! batch.isEmpty()) {
+      aligner.update(batch);
     }
   }
 
@@ -144,6 +291,13 @@ public final class WordAlignmentTester {
     return wordAligner;
   }
 
+  private static SavableWordAligner asSavable(WordAligner wordAligner, String model) {
+    if ( ! (wordAligner instanceof SavableWordAligner)) {
+      throw new RuntimeException("Model cannot be saved or loaded: " + model);
+    }
+    return (SavableWordAligner) wordAligner;
+  }
+
   /**
    * Evaluate the aligner on a gold test set using Alignment Error Rate (AER).
    * 
@@ -151,75 +305,50 @@ public final class WordAlignmentTester {
    * @param testSentencePairs
    * @param testAlignments
    * @param verbose
+   * @param numThreads
    */
-  private static void test(WordAligner wordAligner, List<SentencePair> testSentencePairs, Map<Integer, Alignment> testAlignments, boolean verbose) {
-    int proposedSureCount = 0;
-    int proposedPossibleCount = 0;
-    int sureCount = 0;
-    int proposedCount = 0;
-
-    for (SentencePair sentencePair : testSentencePairs) {
-      final Alignment proposedAlignment = wordAligner.align(sentencePair);
-      final Alignment referenceAlignment = testAlignments.get(sentencePair.getSentenceID());
-      if (referenceAlignment == null) {
-        throw new RuntimeException("No reference alignment found for sentenceID "+sentencePair.getSentenceID());
-      }
-      if (verbose) {
-        System.out.println("Alignment:\n"+Alignment.render(referenceAlignment,proposedAlignment,sentencePair));
-      }
-
-      final int nSourceWords = sentencePair.getSourceWords().size();
-      final int nTargetWords = sentencePair.getTargetWords().size();
-      for (int srcIndex = 0; srcIndex < nSourceWords; srcIndex++) {
-        for (int tgtIndex = 0; tgtIndex < nTargetWords; tgtIndex++) {
-          boolean proposed = proposedAlignment.containsSureAlignment(tgtIndex, srcIndex);
-          boolean sure = referenceAlignment.containsSureAlignment(tgtIndex, srcIndex);
-          boolean possible = referenceAlignment.containsPossibleAlignment(tgtIndex, srcIndex);
-          if (proposed && sure) proposedSureCount++;
-          if (proposed && possible) proposedPossibleCount++;
-          if (proposed) proposedCount++;
-          if (sure) sureCount++;
-        }
+  private static void test(WordAligner wordAligner, List<SentencePair> testSentencePairs, Map<Integer, Alignment> testAlignments, boolean verbose, int numThreads) {
+    List<Alignment> proposedAlignments = new BatchAligner(wordAligner, numThreads).alignAll(testSentencePairs);
+    AlignmentEvaluator.Score[] scores =
+        AlignmentEvaluator.scoreAll(testSentencePairs, proposedAlignments, testAlignments, numThreads);
+    if (verbose) {
+      for (int k = 0; k < scores.length; k++) {
+        SentencePair sentencePair = testSentencePairs.get(k);
+        Alignment referenceAlignment = testAlignments.get(sentencePair.getSentenceID());
+        System.out.println("Alignment:\n"+Alignment.render(referenceAlignment,proposedAlignments.get(k),sentencePair));
+        System.out.printf("Sentence %d: %s%n", sentencePair.getSentenceID(), scores[k]);
       }
     }
+    AlignmentEvaluator.Score total = AlignmentEvaluator.total(scores);
     System.out.println();
     System.out.println("### Evaluation Results ###");
-    System.out.printf("%s:\t%.4f%n", "Precision", proposedPossibleCount/(double)proposedCount);
-    System.out.printf("%s:\t%.4f%n", "Recall", proposedSureCount/(double)sureCount);
-    System.out.printf("%s:\t%.4f%n", "AER", (1.0-(proposedSureCount+proposedPossibleCount)/(double)(sureCount+proposedCount)));
+    System.out.printf("%s:\t%.4f%n", "Precision", total.getPrecision());
+    System.out.printf("%s:\t%.4f%n", "Recall", total.getRecall());
+    System.out.printf("%s:\t%.4f%n", "AER", total.getAER());
   }
 
 
   /**
-   * Write alignments in GIZA++ format. Assumes that NULL alignments are not included in the Alignment object.
-   * 
-   * For more information on this format, see: http://www.statmt.org/moses/?n=FactoredTraining.AlignWords
+   * Write alignments in GIZA++ format (see GizaWriter). Assumes that NULL alignments are not included in the Alignment object.
+   * The output is gzip-compressed if outputFile ends in ".gz".
    * 
    * @param wordAligner
    * @param trainingSentencePairs
    * @param outputFile
+   * @param numThreads
    */
-  private static void write(WordAligner wordAligner, List<SentencePair> trainingSentencePairs, String outputFile) {
+  private static void write(WordAligner wordAligner, Iterable<SentencePair> trainingSentencePairs, String outputFile, int numThreads) {
     try {
-      PrintWriter pw = new PrintWriter(new BufferedOutputStream(new FileOutputStream(outputFile)));
-      for (SentencePair sentence : trainingSentencePairs) {
-        Alignment alignment = wordAligner.align(sentence);
-        int numTargetTokens = sentence.getTargetWords().size();
-        int numSourceTokens = sentence.getSourceWords().size();
-        for (int tgtIndex = 0; tgtIndex < numTargetTokens; ++tgtIndex) {
-          Set<Integer> alignedSourceIndices = alignment.getAlignedSources(tgtIndex);
-          for (int srcIndex : alignedSourceIndices) {
-            if (srcIndex < 0 || srcIndex >= numSourceTokens) {
-              throw new RuntimeException(String.format("Source index out of bounds: idx: %d src_len: %d", srcIndex, numSourceTokens));
-            }
-            pw.printf("%d-%d ", srcIndex, tgtIndex);
-          }
-        }
-        pw.println();
+      GizaWriter writer = new GizaWriter(new File(outputFile));
+      Iterator<Pair<SentencePair, Alignment>> aligned =
+          new BatchAligner(wordAligner, numThreads).align(trainingSentencePairs.iterator());
+      while (aligned.hasNext()) {
+        Pair<SentencePair, Alignment> next = aligned.next();
+        writer.write(next.getFirst(), next.getSecond());
       }
-      pw.close();
+      writer.close();
 
-    } catch (FileNotFoundException e) {
+    } catch (IOException e) {
       e.printStackTrace();
     }
   }
@@ -298,6 +427,70 @@ public final class WordAlignmentTester {
     return sentencePairs;
   }
 
+  /**
+   * Stream aligned sentences from training data.  Unlike loadTrainingData(),
+   * nothing is held in memory: each iteration re-reads the files.
+   *
+   * @param path
+   * @param maxSentencePairs
+   * @return
+   */
+  private static Iterable<SentencePair> streamTrainingData(String path, final int maxSentencePairs) {
+    final List<Pair<String,String>> baseFileNames = getAlignedFileList(path);
+    return new Iterable<SentencePair>() {
+      public Iterator<SentencePair> iterator() {
+        return new Iterator<SentencePair>() {
+          private final Iterator<Pair<String,String>> files = baseFileNames.iterator();
+          private Iterator<SentencePair> sentences = Collections.emptyIterator();
+          private int count = 0;
+
+          public boolean hasNext() {
+            while (count < maxSentencePairs && ! sentences.hasNext() && files.hasNext()) {
+              sentences = new AlignedSentenceIterator(files.next());
+            }
+            return count < maxSentencePairs && sentences.hasNext();
+          }
+
+          public SentencePair next() {
+            if ( ! hasNext()) throw new NoSuchElementException();
+            count++;
+            return sentences.next();
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Iterate over the first sentences, then the second.
+   */
+  private static Iterable<SentencePair> concat(final Iterable<SentencePair> first, final Iterable<SentencePair> second) {
+    return new Iterable<SentencePair>() {
+      public Iterator<SentencePair> iterator() {
+        return new Iterator<SentencePair>() {
+          private final Iterator<SentencePair> firstIterator = first.iterator();
+          private final Iterator<SentencePair> secondIterator = second.iterator();
+
+          public boolean hasNext() {
+            return firstIterator.hasNext() || secondIterator.hasNext();
+          }
+
+          public SentencePair next() {
+            return firstIterator.hasNext() ? firstIterator.next() : secondIterator.next();
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
   /**
    * Read a training data specification in the format of the NAACL-03 / ACL-05 shared task on
    * word alignment.
@@ -339,28 +532,70 @@ public final class WordAlignmentTester {
    */
   private static List<SentencePair> readAlignedSentences(Pair<String,String> filePair) {
     List<SentencePair> sentencePairs = new ArrayList<SentencePair>();
-    String targetFileName = filePair.getFirst();
-    String sourceFileName = filePair.getSecond();
-    try {
-      BufferedReader brTarget = new BufferedReader(new InputStreamReader(new FileInputStream(targetFileName), "UTF-8"));
-      BufferedReader brSource = new BufferedReader(new InputStreamReader(new FileInputStream(sourceFileName), "UTF-8"));
-      while (brTarget.ready() && brSource.ready()) {
+    for (Iterator<SentencePair> it = new AlignedSentenceIterator(filePair); it.hasNext();) {
+      sentencePairs.add(it.next());
+    }
+    return sentencePairs;
+  }
+
+  /**
+   * Reads sentences from aligned files one pair at a time.  The files are
+   * closed once the last pair has been read.
+   */
+  private static class AlignedSentenceIterator implements Iterator<SentencePair> {
+    private final String targetFileName;
+    private final BufferedReader brTarget;
+    private final BufferedReader brSource;
+    private SentencePair next;
+
+    AlignedSentenceIterator(Pair<String,String> filePair) {
+      targetFileName = filePair.getFirst();
+      String sourceFileName = filePair.getSecond();
+      try {
+        brTarget = new BufferedReader(new InputStreamReader(new FileInputStream(targetFileName), "UTF-8"));
+        brSource = new BufferedReader(new InputStreamReader(new FileInputStream(sourceFileName), "UTF-8"));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      advance();
+    }
+
+    private void advance() {
+      try {
         String englishLine = brTarget.readLine();
         String frenchLine = brSource.readLine();
+        if (englishLine == null || frenchLine == null) {
+          next = null;
+          brTarget.close();
+          brSource.close();
+          return;
+        }
         Pair<Integer,List<String>> targetSentenceAndID = tokenizeAndIntern(englishLine);
         Pair<Integer,List<String>> sourceSentenceAndID = tokenizeAndIntern(frenchLine);
         if (! targetSentenceAndID.getFirst().equals(sourceSentenceAndID.getFirst())) {
           throw new RuntimeException("Sentence ID confusion in file "+targetFileName+", lines were:\n\t"+englishLine+"\n\t"+frenchLine);
         }
-        sentencePairs.add(new SentencePair(targetSentenceAndID.getFirst(), targetFileName, targetSentenceAndID.getSecond(), sourceSentenceAndID.getSecond()));
+        next = new SentencePair(targetSentenceAndID.getFirst(), targetFileName, targetSentenceAndID.getSecond(), sourceSentenceAndID.getSecond());
+
+      } catch (IOException e) {
+        throw new RuntimeException(e);
       }
-      brTarget.close();
-      brSource.close();
+    }
 
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    public SentencePair next() {
+      if (next == null) throw new NoSuchElementException();
+      SentencePair current = next;
+      advance();
+      return current;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
     }
-    return sentencePairs;
   }
 
   /**
@@ -0,0 +1,305 @@
+package cs224n.benchmark;
+
+import cs224n.util.CommandLineUtils;
+import cs224n.util.Counter;
+import cs224n.util.CounterMap;
+import cs224n.util.Counters;
+import cs224n.util.IntCounterMap;
+import cs224n.wordaligner.BatchAligner;
+import cs224n.wordaligner.EMWordAligner;
+import cs224n.wordaligner.EStepKernel;
+import cs224n.wordaligner.IndexedCorpus;
+import cs224n.wordaligner.Model1WordAligner;
+import cs224n.wordaligner.Model2WordAligner;
+import cs224n.wordaligner.SentencePair;
+import cs224n.wordaligner.SyntheticCorpus;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmarks of the counters and the aligners' training and inference hot
+ * paths on a synthetic corpus (see SyntheticCorpus), so that regressions
+ * show up as numbers.  Run with "ant benchmark", passing flags through
+ * -Dbenchmark.args="...":
+ *
+ * <pre>
+ *   -sentences N           sentence pairs in the corpus (20000)
+ *   -counterSentences N    of which the boxed Counter benchmarks use (2000)
+ *   -sourceVocabulary N    (20000)
+ *   -targetVocabulary N    (20000)
+ *   -zipf S                exponent of the word distributions (1.0)
+ *   -minLength N, -meanLength N, -maxLength N   source lengths (1, 20, 60)
+ *   -seed N                corpus seed (224)
+ *   -warmup N, -rounds N   warmup and measured rounds (3, 5)
+ *   -threads N             threads for EM and alignment (1)
+ *   -benchmark NAME        only run benchmarks whose name contains NAME
+ * </pre>
+ */
+public class AlignerBenchmarks {
+
+  private static int intFlag(Map<String, String> argMap, String flag, int defaultValue) {
+    return argMap.containsKey(flag) ? Integer.parseInt(argMap.get(flag)) : defaultValue;
+  }
+
+  public static void main(String[] args) {
+    final Map<String, String> argMap = CommandLineUtils.simpleCommandLineParser(args);
+    final int numSentences = intFlag(argMap, "-sentences", 20000);
+    final int numCounterSentences = Math.min(numSentences, intFlag(argMap, "-counterSentences", 2000));
+    final int numThreads = intFlag(argMap, "-threads", 1);
+    final String filter = argMap.containsKey("-benchmark") ? argMap.get("-benchmark") : "";
+
+    SyntheticCorpus generator = new SyntheticCorpus(intFlag(argMap, "-seed", 224));
+    generator.setVocabularySizes(intFlag(argMap, "-sourceVocabulary", 20000),
+        intFlag(argMap, "-targetVocabulary", 20000));
+    if (argMap.containsKey("-zipf")) {
+      generator.setZipfExponent(Double.parseDouble(argMap.get("-zipf")));
+    }
+    generator.setLengths(intFlag(argMap, "-minLength", 1), intFlag(argMap, "-meanLength", 20),
+        intFlag(argMap, "-maxLength", 60));
+    final List<SentencePair> sentencePairs = generator.generate(numSentences);
+    final List<SentencePair> counterSentencePairs = sentencePairs.subList(0, numCounterSentences);
+    final IndexedCorpus corpus = IndexedCorpus.index(sentencePairs);
+    System.out.printf("Synthetic corpus: %d sentence pairs, %d source and %d target words, %d thread(s)%n",
+        corpus.size(), corpus.getSourceIndexer().size(), corpus.getTargetIndexer().size(), numThreads);
+
+    Benchmark benchmark = new Benchmark(intFlag(argMap, "-warmup", 3), intFlag(argMap, "-rounds", 5));
+
+    if ("Counter.incrementCount".contains(filter)) {
+      benchmark.run("Counter.incrementCount", new Benchmark.Task() {
+        public long run() {
+          Counter<String> counter = new Counter<String>();
+          long operations = 0;
+          for (SentencePair pair : counterSentencePairs) {
+            for (String word : pair.getSourceWords()) {
+              counter.incrementCount(word, 1.0);
+              operations++;
+            }
+          }
+          Benchmark.consume(counter.size());
+          return operations;
+        }
+      });
+    }
+
+    if ("CounterMap.getCount".contains(filter)) {
+      final CounterMap<String, String> counterMap = cooccurrences(counterSentencePairs);
+      benchmark.run("CounterMap.getCount", new Benchmark.Task() {
+        public long run() {
+          double total = 0.0;
+          long operations = 0;
+          for (SentencePair pair : counterSentencePairs) {
+            for (String target : pair.getTargetWords()) {
+              for (String source : pair.getSourceWords()) {
+                total += counterMap.getCount(source, target);
+                operations++;
+              }
+            }
+          }
+          Benchmark.consume(total);
+          return operations;
+        }
+      });
+    }
+
+    if ("Counters.conditionalNormalize".contains(filter)) {
+      final CounterMap<String, String> counterMap = cooccurrences(counterSentencePairs);
+      benchmark.run("Counters.conditionalNormalize", new Benchmark.Task() {
+        public long run() {
+          Benchmark.consume(Counters.conditionalNormalize(counterMap).totalSize());
+          return counterMap.totalSize();
+        }
+      });
+    }
+
+    if ("IntCounterMap.incrementCount".contains(filter)) {
+      benchmark.run("IntCounterMap.incrementCount", new Benchmark.Task() {
+        public long run() {
+          IntCounterMap counts = new IntCounterMap();
+          long operations = 0;
+          IndexedCorpus.SentenceReader reader = corpus.read();
+          while (reader.next()) {
+            for (int target : reader.getTargetSentence()) {
+              for (int source : reader.getSourceSentence()) {
+                counts.incrementCount(source, target, 1.0);
+                operations++;
+              }
+            }
+          }
+          reader.close();
+          Benchmark.consume(counts.totalSize());
+          return operations;
+        }
+      });
+    }
+
+    // The kernels alone, on matrices of typical sentence size.
+    for (final EStepKernel kernel : EStepKernel.values()) {
+      String name = "EStepKernel." + kernel + ".posteriors";
+      if (name.contains(filter)) {
+        System.out.printf("%s: largest relative difference from SCALAR %.3g%n", kernel, kernel.compareWithScalar(224L));
+        final double[] matrix = new double[20 * 21];
+        final double[] values = new double[matrix.length];
+        final double[] sums = new double[20];
+        for (int k = 0; k < matrix.length; k++) {
+          matrix[k] = 1.0 / (k + 1);
+        }
+        benchmark.run(name, new Benchmark.Task() {
+          public long run() {
+            for (int repeat = 0; repeat < 100000; repeat++) {
+              System.arraycopy(matrix, 0, values, 0, matrix.length);
+              kernel.posteriors(values, 21, 20, sums);
+            }
+            Benchmark.consume(sums[0]);
+            return 100000L * matrix.length;
+          }
+        });
+      }
+    }
+
+    if ("Model1WordAligner EM iteration".contains(filter)) {
+      benchmark.run("Model1WordAligner EM iteration", new Benchmark.Task() {
+        public long run() {
+          Model1WordAligner aligner = new Model1WordAligner();
+          configure(aligner, 1, numThreads);
+          aligner.train(corpus);
+          return corpus.size();
+        }
+      });
+    }
+
+    // Five iterations, so the one-time index is paid for as in real training.
+    for (final boolean indexed : new boolean[]{false, true}) {
+      String name = "Model1WordAligner 5 EM iterations" + (indexed ? ", co-occurrence index" : "");
+      if (name.contains(filter)) {
+        benchmark.run(name, new Benchmark.Task() {
+          public long run() {
+            Model1WordAligner aligner = new Model1WordAligner();
+            configure(aligner, 5, numThreads);
+            aligner.setCooccurrenceIndexing(indexed);
+            aligner.train(corpus);
+            return 5L * corpus.size();
+          }
+        });
+      }
+    }
+
+    if ("Model1WordAligner 5 EM iterations, co-occurrence index, unrolled kernel".contains(filter)) {
+      benchmark.run("Model1WordAligner 5 EM iterations, co-occurrence index, unrolled kernel", new Benchmark.Task() {
+        public long run() {
+          Model1WordAligner aligner = new Model1WordAligner();
+          configure(aligner, 5, numThreads);
+          aligner.setCooccurrenceIndexing(true);
+          aligner.setKernel(EStepKernel.UNROLLED);
+          aligner.train(corpus);
+          return 5L * corpus.size();
+        }
+      });
+    }
+
+    if ("Model2WordAligner EM iteration".contains(filter)) {
+      // Model 2 trains one Model 1 iteration to initialize, then one of its own.
+      benchmark.run("Model2WordAligner EM iteration", new Benchmark.Task() {
+        public long run() {
+          Model2WordAligner aligner = new Model2WordAligner();
+          configure(aligner, 1, numThreads);
+          aligner.train(corpus);
+          return corpus.size();
+        }
+      });
+    }
+
+    if ("Model2WordAligner EM iteration, unrolled kernel".contains(filter)) {
+      benchmark.run("Model2WordAligner EM iteration, unrolled kernel", new Benchmark.Task() {
+        public long run() {
+          Model2WordAligner aligner = new Model2WordAligner();
+          configure(aligner, 1, numThreads);
+          aligner.setKernel(EStepKernel.UNROLLED);
+          aligner.train(corpus);
+          return corpus.size();
+        }
+      });
+    }
+
+    if ("Model2WordAligner EM iteration, fork/join".contains(filter)) {
+      benchmark.run("Model2WordAligner EM iteration, fork/join", new Benchmark.Task() {
+        public long run() {
+          Model2WordAligner aligner = new Model2WordAligner();
+          configure(aligner, 1, numThreads);
+          aligner.setForkJoin(true);
+          aligner.train(corpus);
+          return corpus.size();
+        }
+      });
+    }
+
+    if ("Model2WordAligner EM iteration, shared counts".contains(filter)) {
+      benchmark.run("Model2WordAligner EM iteration, shared counts", new Benchmark.Task() {
+        public long run() {
+          Model2WordAligner aligner = new Model2WordAligner();
+          configure(aligner, 1, numThreads);
+          aligner.setSharedCounts(true);
+          aligner.train(corpus);
+          return corpus.size();
+        }
+      });
+    }
+
+    if ("Model2WordAligner EM iteration, length buckets".contains(filter)) {
+      // As above, on the corpus sorted by sentence lengths once up front.
+      final IndexedCorpus sortedCorpus = corpus.byLength();
+      benchmark.run("Model2WordAligner EM iteration, length buckets", new Benchmark.Task() {
+        public long run() {
+          Model2WordAligner aligner = new Model2WordAligner();
+          configure(aligner, 1, numThreads);
+          aligner.train(sortedCorpus);
+          return sortedCorpus.size();
+        }
+      });
+    }
+
+    if ("Model1WordAligner.align".contains(filter)) {
+      Model1WordAligner aligner = new Model1WordAligner();
+      configure(aligner, 5, numThreads);
+      aligner.train(corpus);
+      runAlign(benchmark, "Model1WordAligner.align", aligner, sentencePairs, numThreads);
+    }
+
+    if ("Model2WordAligner.align".contains(filter)) {
+      Model2WordAligner aligner = new Model2WordAligner();
+      configure(aligner, 5, numThreads);
+      aligner.train(corpus);
+      runAlign(benchmark, "Model2WordAligner.align", aligner, sentencePairs, numThreads);
+    }
+  }
+
+  private static void configure(EMWordAligner aligner, int maxIterations, int numThreads) {
+    aligner.setMaxIterations(maxIterations);
+    aligner.setNumThreads(numThreads);
+    aligner.setVerbose(false);
+  }
+
+  private static void runAlign(Benchmark benchmark, String name, final EMWordAligner aligner,
+                               final List<SentencePair> sentencePairs, int numThreads) {
+    final BatchAligner batchAligner = new BatchAligner(aligner, numThreads);
+    benchmark.run(name, new Benchmark.Task() {
+      public long run() {
+        Benchmark.consume(batchAligner.alignAll(sentencePairs).size());
+        return sentencePairs.size();
+      }
+    });
+  }
+
+  // Counts of every (source, target) pair in the same sentence pair.
+  private static CounterMap<String, String> cooccurrences(List<SentencePair> sentencePairs) {
+    CounterMap<String, String> counterMap = new CounterMap<String, String>();
+    for (SentencePair pair : sentencePairs) {
+      for (String target : pair.getTargetWords()) {
+        for (String source : pair.getSourceWords()) {
+          counterMap.incrementCount(source, target, 1.0);
+        }
+      }
+    }
+    return counterMap;
+  }
+}
@@ -0,0 +1,86 @@
+package cs224n.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * A minimal benchmark harness: runs a task for some warmup rounds so the JIT
+ * settles, then times a number of measured rounds and reports the
+ * throughput.  Each round runs in a fresh state from Task.setUp(), which is
+ * not timed.
+ */
+public class Benchmark {
+
+  /**
+   * One benchmarked operation.
+   */
+  public static abstract class Task {
+    /**
+     * Prepares a round.  Not timed.
+     */
+    public void setUp() {
+    }
+
+    /**
+     * Runs one round.
+     *
+     * @return the number of operations done, for the throughput
+     */
+    public abstract long run();
+  }
+
+  // Results are folded into this so the JIT cannot drop the work.
+  private static volatile double sink;
+
+  /**
+   * Feeds a result to a sink that the JIT cannot see through.
+   */
+  public static void consume(double value) {
+    sink += value;
+  }
+
+  private final int warmupRounds;
+  private final int measuredRounds;
+
+  public Benchmark(int warmupRounds, int measuredRounds) {
+    if (warmupRounds < 0 || measuredRounds < 1) {
+      throw new IllegalArgumentException("Need at least one measured round");
+    }
+    this.warmupRounds = warmupRounds;
+    this.measuredRounds = measuredRounds;
+  }
+
+  /**
+   * Runs and times a task, printing one line with its throughput: the mean,
+   * standard deviation and median over the measured rounds.
+   *
+   * @return the operations per second of each measured round
+   */
+  public double[] run(String name, Task task) {
+    for (int r = 0; r < warmupRounds; r++) {
+      task.setUp();
+      task.run();
+    }
+    double[] throughputs = new double[measuredRounds];
+    for (int r = 0; r < measuredRounds; r++) {
+      task.setUp();
+      long start = System.nanoTime();
+      long operations = task.run();
+      long elapsed = Math.max(1, System.nanoTime() - start);
+      throughputs[r] = operations * 1e9 / elapsed;
+    }
+
+    double mean = 0.0;
+    for (double throughput : throughputs) {
+      mean += throughput / measuredRounds;
+    }
+    double variance = 0.0;
+    for (double throughput : throughputs) {
+      variance += (throughput - mean) * (throughput - mean) / measuredRounds;
+    }
+    double[] sorted = throughputs.clone();
+    Arrays.sort(sorted);
+    System.out.printf("%-36s %14.1f ops/s  +- %12.1f  (median %14.1f, %d rounds)%n",
+        name, mean, Math.sqrt(variance), sorted[measuredRounds / 2], measuredRounds);
+    return throughputs;
+  }
+}
@@ -0,0 +1,108 @@
+package cs224n.util;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Helpers for compact binary files of primitive arrays, strings and
+ * vocabularies.  Files are written through a DataOutputStream and read back
+ * from a memory-mapped ByteBuffer, so arrays are copied out in bulk rather
+ * than one value at a time.  Every array is prefixed by its length.
+ */
+public class BinaryIO {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private BinaryIO() {
+  }
+
+  /**
+   * Maps a whole file read-only.  Files must be smaller than 2GB.
+   */
+  public static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      // The mapping stays valid once the file is closed.
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+  public static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  public static String readString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Writes the objects of a vocabulary in index order.
+   */
+  public static void writeIndexer(DataOutputStream out, Indexer<String> indexer) throws IOException {
+    out.writeInt(indexer.size());
+    for (String word : indexer.getObjects()) {
+      writeString(out, word);
+    }
+  }
+
+  public static Indexer<String> readIndexer(ByteBuffer in) {
+    Indexer<String> indexer = new Indexer<String>();
+    int size = in.getInt();
+    for (int i = 0; i < size; i++) {
+      indexer.addAndGetIndex(readString(in));
+    }
+    return indexer;
+  }
+
+  public static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    out.writeInt(values.length);
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  public static int[] readInts(ByteBuffer in) {
+    int[] values = new int[in.getInt()];
+    in.asIntBuffer().get(values);
+    in.position(in.position() + 4 * values.length);
+    return values;
+  }
+
+  public static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+    out.writeInt(values.length);
+    for (long value : values) {
+      out.writeLong(value);
+    }
+  }
+
+  public static long[] readLongs(ByteBuffer in) {
+    long[] values = new long[in.getInt()];
+    in.asLongBuffer().get(values);
+    in.position(in.position() + 8 * values.length);
+    return values;
+  }
+
+  public static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+    out.writeInt(values.length);
+    for (double value : values) {
+      out.writeDouble(value);
+    }
+  }
+
+  public static double[] readDoubles(ByteBuffer in) {
+    double[] values = new double[in.getInt()];
+    in.asDoubleBuffer().get(values);
+    in.position(in.position() + 8 * values.length);
+    return values;
+  }
+}
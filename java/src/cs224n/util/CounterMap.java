@@ -65,6 +65,15 @@ public class CounterMap<K, V> {
     valueCounter.incrementCount(value, count);
   }
 
+  /**
+   * Increments the counts of this CounterMap by those of another.
+   */
+  public void incrementAll(CounterMap<K, V> other) {
+    for (Map.Entry<K, Counter<V>> entry : other.counterMap.entrySet()) {
+      ensureCounter(entry.getKey()).incrementAll(entry.getValue());
+    }
+  }
+
   /**
    * Gets the count of the given (key, value) entry, or zero if that
    * entry is not present.  Does not create any objects.
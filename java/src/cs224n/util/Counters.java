@@ -2,6 +2,7 @@ package cs224n.util;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 
 /**
  * Utility methods related to Counters and CounterMaps.
@@ -22,15 +23,19 @@ public class Counters {
   public static <K,V> CounterMap<K,V> conditionalNormalize(CounterMap<K,V> counterMap) {
     CounterMap<K,V> normalizedCounterMap = new CounterMap<K,V>();
     for (K key : counterMap.keySet()) {
-      Counter<V> normalizedSubCounter = normalize(counterMap.getCounter(key));
-      for (V value : normalizedSubCounter.keySet()) {
-        double count = normalizedSubCounter.getCount(value);
-        normalizedCounterMap.setCount(key, value, count);
+      Counter<V> counter = counterMap.getCounter(key);
+      double total = counter.totalCount();
+      for (Map.Entry<V, Double> entry : counter.entries.entrySet()) {
+        normalizedCounterMap.setCount(key, entry.getKey(), entry.getValue() / total);
       }
     }
     return normalizedCounterMap;
   }
 
+  public static IntCounterMap conditionalNormalize(IntCounterMap counterMap) {
+    return new IntCounterMap(counterMap).conditionalNormalize();
+  }
+
   public static <E> String toBiggestValuesFirstString(Counter<E> c) {
     return c.asPriorityQueue().toString();
   }
@@ -0,0 +1,93 @@
+package cs224n.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maintains a two-way map between a set of objects and contiguous integers
+ * from 0 to the number of objects.  Use get(i) to look up object i, and
+ * indexOf(object) to look up the index of an object.
+ *
+ * @author Dan Klein
+ */
+public class Indexer<E> implements Serializable {
+  private static final long serialVersionUID = -8769544079136550516L;
+
+  private List<E> objects;
+  private Map<E, Integer> indexes;
+
+  /**
+   * Return the object with the given index.
+   *
+   * @param index
+   */
+  public E get(int index) {
+    return objects.get(index);
+  }
+
+  /**
+   * Returns the number of objects indexed.
+   */
+  public int size() {
+    return objects.size();
+  }
+
+  /**
+   * Returns the index of the given object, or -1 if the object is not present
+   * in the indexer.
+   *
+   * @param o
+   * @return index of the object, or -1
+   */
+  public int indexOf(E o) {
+    Integer index = indexes.get(o);
+    if (index == null)
+      return -1;
+    return index;
+  }
+
+  /**
+   * Constant time override for contains.
+   */
+  public boolean contains(E o) {
+    return indexes.containsKey(o);
+  }
+
+  /**
+   * Add an element to the indexer if it is not already present, and return
+   * its index in either case.
+   *
+   * @param e
+   * @return the index of the element
+   */
+  public int addAndGetIndex(E e) {
+    Integer index = indexes.get(e);
+    if (index != null) {
+      return index;
+    }
+    index = objects.size();
+    objects.add(e);
+    indexes.put(e, index);
+    return index;
+  }
+
+  /**
+   * The indexed objects, in index order.
+   */
+  public List<E> getObjects() {
+    return Collections.unmodifiableList(objects);
+  }
+
+  public String toString() {
+    return objects.toString();
+  }
+
+  public Indexer() {
+    objects = new ArrayList<E>();
+    indexes = new HashMap<E, Integer>();
+  }
+}
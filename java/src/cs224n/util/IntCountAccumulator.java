@@ -0,0 +1,13 @@
+package cs224n.util;
+
+/**
+ * Something counts of (key, value) pairs of non-negative ints can be added
+ * to: an IntCounterMap owned by one thread, or a StripedIntCounterMap shared
+ * by many.
+ */
+public interface IntCountAccumulator {
+  /**
+   * Increments the count for a particular (key, value) pair.
+   */
+  void incrementCount(int key, int value, double count);
+}
@@ -0,0 +1,504 @@
+package cs224n.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Maintains counts of (key, value) pairs of non-negative ints, like a
+ * CounterMap over indices (see Indexer).  Each pair is packed into a single
+ * long and stored in an open-addressing hash table with linear probing, so
+ * lookups and increments create no objects.  Pairs not in the map have a
+ * count of zero.
+ */
+public class IntCounterMap implements IntCountAccumulator, Serializable {
+  private static final long serialVersionUID = 2937718612357612946L;
+
+  // Marks an empty slot. Never a valid entry since keys are non-negative.
+  private static final long EMPTY = -1L;
+  private static final int DEFAULT_CAPACITY = 1024;
+  private static final double MAX_LOAD = 0.6;
+
+  private long[] entries;
+  private double[] counts;
+  private int size;
+  // Total count of each key, kept up to date as counts change.
+  private double[] totals;
+
+  // -----------------------------------------------------------------------
+
+  public IntCounterMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public IntCounterMap(int expectedSize) {
+    int capacity = capacity(expectedSize);
+    entries = new long[capacity];
+    counts = new double[capacity];
+    Arrays.fill(entries, EMPTY);
+    totals = new double[16];
+  }
+
+  public IntCounterMap(IntCounterMap other) {
+    entries = other.entries.clone();
+    counts = other.counts.clone();
+    size = other.size;
+    totals = other.totals.clone();
+  }
+
+  // -----------------------------------------------------------------------
+
+  // Smallest power of two holding expectedSize entries below MAX_LOAD.
+  private static int capacity(int expectedSize) {
+    return Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+  }
+
+  private static long pack(int key, int value) {
+    return ((long) key << 32) | (value & 0xffffffffL);
+  }
+
+  private static int mix(long entry) {
+    entry *= 0x9E3779B97F4A7C15L;
+    return (int) (entry ^ (entry >>> 32));
+  }
+
+  // Returns the slot holding entry, or the empty slot where it belongs.
+  private int slot(long entry) {
+    int mask = entries.length - 1;
+    int slot = mix(entry) & mask;
+    while (entries[slot] != EMPTY && entries[slot] != entry) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private int insert(int key, int value) {
+    long entry = pack(key, value);
+    int slot = slot(entry);
+    if (entries[slot] == EMPTY) {
+      if (size + 1 > entries.length * MAX_LOAD) {
+        rehash(entries.length << 1);
+        slot = slot(entry);
+      }
+      entries[slot] = entry;
+      size++;
+      if (key >= totals.length) {
+        totals = Arrays.copyOf(totals, Math.max(key + 1, totals.length << 1));
+      }
+    }
+    return slot;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldEntries = entries;
+    double[] oldCounts = counts;
+    entries = new long[capacity];
+    counts = new double[capacity];
+    Arrays.fill(entries, EMPTY);
+    for (int i = 0; i < oldEntries.length; i++) {
+      if (oldEntries[i] != EMPTY) {
+        int slot = slot(oldEntries[i]);
+        entries[slot] = oldEntries[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Gets the count of the given (key, value) entry, or zero if that entry is
+   * not present.  Negative (unknown) indices always have a count of zero.
+   */
+  public double getCount(int key, int value) {
+    if (key < 0 || value < 0) {
+      return 0.0;
+    }
+    int slot = slot(pack(key, value));
+    return entries[slot] == EMPTY ? 0.0 : counts[slot];
+  }
+
+  /**
+   * Gets the count of the given (key, value) entry, or missing if that entry
+   * is not present.
+   */
+  public double getCount(int key, int value, double missing) {
+    if (key < 0 || value < 0) {
+      return missing;
+    }
+    int slot = slot(pack(key, value));
+    return entries[slot] == EMPTY ? missing : counts[slot];
+  }
+
+  /**
+   * Sets the count for a particular (key, value) pair.
+   */
+  public void setCount(int key, int value, double count) {
+    int slot = insert(key, value);
+    totals[key] += count - counts[slot];
+    counts[slot] = count;
+  }
+
+  /**
+   * Increments the count for a particular (key, value) pair.
+   */
+  public void incrementCount(int key, int value, double count) {
+    int slot = insert(key, value);
+    totals[key] += count;
+    counts[slot] += count;
+  }
+
+  /**
+   * Increments the counts of this map by those of another.  Entries of the
+   * other map with a zero count are not added.
+   */
+  public void incrementAll(IntCounterMap other) {
+    for (int i = 0; i < other.entries.length; i++) {
+      if (other.entries[i] != EMPTY && other.counts[i] != 0.0) {
+        incrementCount((int) (other.entries[i] >>> 32), (int) other.entries[i], other.counts[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns the total of all counts.  This is linear in the number of keys.
+   */
+  public double totalCount() {
+    double total = 0.0;
+    for (double keyTotal : totals) {
+      total += keyTotal;
+    }
+    return total;
+  }
+
+  /**
+   * Returns the total of the counts for the given key.  The totals are kept
+   * as counts are set and incremented, so this takes constant time.
+   */
+  public double totalCount(int key) {
+    return key >= 0 && key < totals.length ? totals[key] : 0.0;
+  }
+
+  /**
+   * Finds the value with maximum count for the given key, or -1 if the key
+   * has no entries.  This is a linear operation over the whole map, and ties
+   * are broken arbitrarily.
+   */
+  public int argMax(int key) {
+    double maxCount = Double.NEGATIVE_INFINITY;
+    int maxValue = -1;
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i] != EMPTY && (int) (entries[i] >>> 32) == key
+          && (counts[i] > maxCount || maxValue < 0)) {
+        maxValue = (int) entries[i];
+        maxCount = counts[i];
+      }
+    }
+    return maxValue;
+  }
+
+  /**
+   * Normalizes the counts of each key to sum to one, in place.  Uses the
+   * totals kept during accumulation, so this is a single pass over the
+   * entries.
+   *
+   * @return this map
+   */
+  public IntCounterMap conditionalNormalize() {
+    conditionalNormalize(null);
+    return this;
+  }
+
+  /**
+   * Normalizes like conditionalNormalize(), measuring in the same pass how
+   * far each normalized count moved from its count in previous.  Keys whose
+   * counts sum to zero have nothing to normalize; their entries stay at zero
+   * and are not measured.
+   *
+   * @param previous - the map these counts replace, or null
+   * @return the largest absolute change of an entry of this map (NaN if a
+   *         count is NaN), or infinity if previous is null
+   */
+  public double conditionalNormalize(IntCounterMap previous) {
+    double maxChange = previous == null ? Double.POSITIVE_INFINITY : 0.0;
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i] != EMPTY) {
+        int key = (int) (entries[i] >>> 32);
+        if (totals[key] == 0.0) {
+          continue;
+        }
+        counts[i] /= totals[key];
+        if (previous != null) {
+          double change = Math.abs(counts[i] - previous.getCount(key, (int) entries[i]));
+          // Once NaN, stays NaN.
+          if (change > maxChange || Double.isNaN(change)) {
+            maxChange = change;
+          }
+        }
+      }
+    }
+    for (int key = 0; key < totals.length; key++) {
+      if (totals[key] != 0.0) {
+        totals[key] = 1.0;
+      }
+    }
+    return maxChange;
+  }
+
+  /**
+   * Moves the distribution of every key a step towards the normalized counts
+   * of another map: c(value|key) becomes
+   * (1 - weight) * c(value|key) + weight * other(key, value) / other(key).
+   * Keys without counts in the other map are left alone, and keys with no
+   * counts in this map take the other map's distribution outright.
+   *
+   * @param other - counts, not necessarily normalized
+   * @param weight - step size in [0, 1]
+   */
+  public void interpolate(IntCounterMap other, double weight) {
+    // Step of each key the other map has counts for.
+    double[] steps = new double[other.totals.length];
+    for (int key = 0; key < steps.length; key++) {
+      if (other.totals[key] > 0.0) {
+        steps[key] = totalCount(key) > 0.0 ? weight : 1.0;
+      }
+    }
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i] != EMPTY) {
+        int key = (int) (entries[i] >>> 32);
+        if (key < steps.length && steps[key] > 0.0) {
+          counts[i] *= 1.0 - steps[key];
+        }
+      }
+    }
+    for (int key = 0; key < steps.length && key < totals.length; key++) {
+      totals[key] *= 1.0 - steps[key];
+    }
+    for (int i = 0; i < other.entries.length; i++) {
+      if (other.entries[i] != EMPTY && other.counts[i] != 0.0) {
+        int key = (int) (other.entries[i] >>> 32);
+        incrementCount(key, (int) other.entries[i], steps[key] * other.counts[i] / other.totals[key]);
+      }
+    }
+  }
+
+  /**
+   * Removes every entry whose count is zero or below minCount, and all but
+   * the maxPerKey largest entries of each key (ties are broken by position in
+   * the table).  The table then shrinks to fit the remaining entries, and the
+   * totals are recomputed from their counts.
+   *
+   * @param minCount
+   * @param maxPerKey - the number of entries to keep per key, or 0 for no
+   *        limit
+   * @return the number of entries removed
+   */
+  public int prune(double minCount, int maxPerKey) {
+    boolean[] keep = new boolean[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      keep[i] = entries[i] != EMPTY && counts[i] > 0.0 && counts[i] >= minCount;
+    }
+
+    if (maxPerKey > 0) {
+      // Group the kept slots by key, with a counting sort.
+      int[] start = new int[totals.length + 1];
+      for (int i = 0; i < entries.length; i++) {
+        if (keep[i]) {
+          start[(int) (entries[i] >>> 32) + 1]++;
+        }
+      }
+      for (int key = 0; key < totals.length; key++) {
+        start[key + 1] += start[key];
+      }
+      int[] next = Arrays.copyOf(start, totals.length);
+      int[] slots = new int[start[totals.length]];
+      for (int i = 0; i < entries.length; i++) {
+        if (keep[i]) {
+          slots[next[(int) (entries[i] >>> 32)]++] = i;
+        }
+      }
+
+      for (int key = 0; key < totals.length; key++) {
+        int from = start[key];
+        int to = start[key + 1];
+        if (to - from <= maxPerKey) {
+          continue;
+        }
+        double[] sorted = new double[to - from];
+        for (int k = from; k < to; k++) {
+          sorted[k - from] = counts[slots[k]];
+        }
+        Arrays.sort(sorted);
+        double cutoff = sorted[sorted.length - maxPerKey];
+        int ties = maxPerKey;
+        for (double count : sorted) {
+          if (count > cutoff) {
+            ties--;
+          }
+        }
+        for (int k = from; k < to; k++) {
+          double count = counts[slots[k]];
+          keep[slots[k]] = count > cutoff || (count == cutoff && ties-- > 0);
+        }
+      }
+    }
+
+    long[] oldEntries = entries;
+    double[] oldCounts = counts;
+    int oldSize = size;
+    size = 0;
+    for (boolean kept : keep) {
+      if (kept) {
+        size++;
+      }
+    }
+    entries = new long[capacity(size)];
+    counts = new double[entries.length];
+    Arrays.fill(entries, EMPTY);
+    Arrays.fill(totals, 0.0);
+    for (int i = 0; i < oldEntries.length; i++) {
+      if (keep[i]) {
+        int slot = slot(oldEntries[i]);
+        entries[slot] = oldEntries[i];
+        counts[slot] = oldCounts[i];
+        totals[(int) (oldEntries[i] >>> 32)] += oldCounts[i];
+      }
+    }
+    return oldSize - size;
+  }
+
+  /**
+   * Sets every count to zero but keeps the entries, so the map can collect
+   * counts over the same (key, value) pairs again without inserting them.
+   */
+  public void clear() {
+    Arrays.fill(counts, 0.0);
+    Arrays.fill(totals, 0.0);
+  }
+
+  /**
+   * Writes the entries in a compact form, without the empty slots of the
+   * hash table: the packed (key, value) pairs, then their counts, as two
+   * arrays readable by BinaryIO.readLongs() and readDoubles().
+   */
+  public void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(size);
+    for (long entry : entries) {
+      if (entry != EMPTY) {
+        out.writeLong(entry);
+      }
+    }
+    out.writeInt(size);
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i] != EMPTY) {
+        out.writeDouble(counts[i]);
+      }
+    }
+  }
+
+  /**
+   * Replaces the contents of this map with the entries written by
+   * writeTo(), rehashing them into a table sized for them.
+   */
+  public void readFrom(ByteBuffer in) {
+    long[] present = BinaryIO.readLongs(in);
+    double[] presentCounts = BinaryIO.readDoubles(in);
+    entries = new long[capacity(present.length)];
+    counts = new double[entries.length];
+    Arrays.fill(entries, EMPTY);
+    size = 0;
+    totals = new double[16];
+    for (int i = 0; i < present.length; i++) {
+      int key = (int) (present[i] >>> 32);
+      int slot = insert(key, (int) present[i]);
+      counts[slot] = presentCounts[i];
+      totals[key] += presentCounts[i];
+    }
+  }
+
+  /**
+   * Returns the total number of (key, value) entries in the map (not their
+   * total counts).
+   */
+  public int totalSize() {
+    return size;
+  }
+
+  /**
+   * True if there are no entries in the map (false does not mean
+   * totalCount > 0)
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns a cursor over the entries of the map, in no particular order.
+   */
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * Walks the entries of the map.  Call next() before reading the first
+   * entry.
+   */
+  public class Cursor {
+    private int slot = -1;
+
+    public boolean next() {
+      while (++slot < entries.length) {
+        if (entries[slot] != EMPTY) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public int key() {
+      return (int) (entries[slot] >>> 32);
+    }
+
+    public int value() {
+      return (int) entries[slot];
+    }
+
+    public double count() {
+      return counts[slot];
+    }
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[\n");
+    Cursor cursor = cursor();
+    while (cursor.next()) {
+      sb.append("  (");
+      sb.append(cursor.key());
+      sb.append(", ");
+      sb.append(cursor.value());
+      sb.append(") -> ");
+      sb.append(cursor.count());
+      sb.append("\n");
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
+  // -----------------------------------------------------------------------
+
+  public static void main(String[] args) {
+    IntCounterMap bigramCounterMap = new IntCounterMap();
+    bigramCounterMap.incrementCount(0, 1, 1);
+    bigramCounterMap.incrementCount(2, 3, 2);
+    bigramCounterMap.incrementCount(2, 4, 3);
+    System.out.println(bigramCounterMap);
+    System.out.println("Count of 2 4: " + bigramCounterMap.getCount(2, 4));
+    System.out.println("Count of 5 6: " + bigramCounterMap.getCount(5, 6));
+    System.out.println("Argmax of 2: " + bigramCounterMap.argMax(2));
+    System.out.println("Total size: " + bigramCounterMap.totalSize());
+    System.out.println("Total count: " + bigramCounterMap.totalCount());
+    System.out.println(bigramCounterMap.conditionalNormalize());
+  }
+}
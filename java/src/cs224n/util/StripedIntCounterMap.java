@@ -0,0 +1,206 @@
+package cs224n.util;
+
+import java.util.Arrays;
+
+/**
+ * Counts of (key, value) pairs of non-negative ints that many threads can
+ * increment at once, so that workers can collect counts into one shared
+ * table instead of a table each.  Pairs are packed into longs as in
+ * IntCounterMap and spread over stripes by hash.  Each stripe is a small
+ * open-addressing table guarded by its own lock, and grows on its own, so
+ * threads only wait for each other when they hit the same stripe at the
+ * same moment.
+ *
+ * Concurrent increments of a pair are summed in whatever order the threads
+ * get there, so counts can differ from a serial sum in the last bits.  The
+ * methods other than incrementCount() are not meant to run alongside
+ * increments.
+ */
+public class StripedIntCounterMap implements IntCountAccumulator {
+  private static final long EMPTY = -1L;
+  private static final double MAX_LOAD = 0.6;
+
+  private final Stripe[] stripes;
+  // Shift that takes the top bits of a mixed entry to a stripe number.
+  private final int stripeShift;
+
+  /**
+   * @param numStripes - rounded up to a power of two; a few times the number
+   *        of threads keeps contention low
+   * @param expectedSize - expected number of (key, value) pairs, over all
+   *        stripes
+   */
+  public StripedIntCounterMap(int numStripes, int expectedSize) {
+    int stripeBits = 32 - Integer.numberOfLeadingZeros(Math.max(1, numStripes) - 1);
+    stripes = new Stripe[1 << stripeBits];
+    stripeShift = 64 - stripeBits;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe(expectedSize / stripes.length);
+    }
+  }
+
+  private static long pack(int key, int value) {
+    return ((long) key << 32) | (value & 0xffffffffL);
+  }
+
+  // Picks a stripe from the high bits of the hash; stripes probe with the
+  // low bits, so the two stay independent.
+  private Stripe stripe(long entry) {
+    return stripes.length == 1 ? stripes[0] : stripes[(int) ((entry * 0x9E3779B97F4A7C15L) >>> stripeShift)];
+  }
+
+  /**
+   * Increments the count for a particular (key, value) pair.  Safe to call
+   * from many threads at once.
+   */
+  public void incrementCount(int key, int value, double count) {
+    long entry = pack(key, value);
+    Stripe stripe = stripe(entry);
+    synchronized (stripe) {
+      stripe.increment(entry, count);
+    }
+  }
+
+  /**
+   * Gets the count of the given (key, value) entry, or zero if that entry is
+   * not present.
+   */
+  public double getCount(int key, int value) {
+    long entry = pack(key, value);
+    Stripe stripe = stripe(entry);
+    synchronized (stripe) {
+      return stripe.get(entry);
+    }
+  }
+
+  /**
+   * Adds every count to a map, skipping zero counts.
+   */
+  public void addTo(IntCounterMap target) {
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        for (int i = 0; i < stripe.entries.length; i++) {
+          if (stripe.entries[i] != EMPTY && stripe.counts[i] != 0.0) {
+            target.incrementCount((int) (stripe.entries[i] >>> 32), (int) stripe.entries[i], stripe.counts[i]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets every count to zero but keeps the entries, like
+   * IntCounterMap.clear().
+   */
+  public void clear() {
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        Arrays.fill(stripe.counts, 0.0);
+      }
+    }
+  }
+
+  /**
+   * Drops the entries whose count is zero.
+   *
+   * @return the number of entries dropped
+   */
+  public int removeZeroCounts() {
+    int removed = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        removed += stripe.removeZeroCounts();
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Returns the number of (key, value) entries over all stripes.
+   */
+  public int totalSize() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size;
+      }
+    }
+    return size;
+  }
+
+  // An open-addressing table with linear probing, as in IntCounterMap but
+  // without per-key totals.
+  private static class Stripe {
+    long[] entries;
+    double[] counts;
+    int size;
+
+    Stripe(int expectedSize) {
+      allocate(Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1);
+    }
+
+    private void allocate(int capacity) {
+      entries = new long[capacity];
+      counts = new double[capacity];
+      Arrays.fill(entries, EMPTY);
+    }
+
+    private int slot(long entry) {
+      int mask = entries.length - 1;
+      long mixed = entry * 0x9E3779B97F4A7C15L;
+      int slot = (int) (mixed ^ (mixed >>> 32)) & mask;
+      while (entries[slot] != EMPTY && entries[slot] != entry) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    double get(long entry) {
+      int slot = slot(entry);
+      return entries[slot] == EMPTY ? 0.0 : counts[slot];
+    }
+
+    void increment(long entry, double count) {
+      int slot = slot(entry);
+      if (entries[slot] == EMPTY) {
+        if (size + 1 > entries.length * MAX_LOAD) {
+          rehash(entries.length << 1);
+          slot = slot(entry);
+        }
+        entries[slot] = entry;
+        size++;
+      }
+      counts[slot] += count;
+    }
+
+    int removeZeroCounts() {
+      int oldSize = size;
+      long[] oldEntries = entries;
+      double[] oldCounts = counts;
+      allocate(entries.length);
+      size = 0;
+      for (int i = 0; i < oldEntries.length; i++) {
+        if (oldEntries[i] != EMPTY && oldCounts[i] != 0.0) {
+          int slot = slot(oldEntries[i]);
+          entries[slot] = oldEntries[i];
+          counts[slot] = oldCounts[i];
+          size++;
+        }
+      }
+      return oldSize - size;
+    }
+
+    private void rehash(int capacity) {
+      long[] oldEntries = entries;
+      double[] oldCounts = counts;
+      allocate(capacity);
+      for (int i = 0; i < oldEntries.length; i++) {
+        if (oldEntries[i] != EMPTY) {
+          int slot = slot(oldEntries[i]);
+          entries[slot] = oldEntries[i];
+          counts[slot] = oldCounts[i];
+        }
+      }
+    }
+  }
+}
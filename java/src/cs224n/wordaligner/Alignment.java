@@ -13,34 +13,59 @@ import cs224n.util.Pair;
  *
  * To build an alignment, start with an empty one and use
  * addAlignment(i,j,true).  To display one, use the render method.
+ *
+ * Links are stored in LinkSets, so lookups do not allocate and the sources
+ * aligned to a target position are found without a scan.
  * 
  * @author Dan Klein
  * @author Spence Green
  * 
  */
 public class Alignment {
-  private Set<Pair<Integer, Integer>> sureAlignments;
-  private Set<Pair<Integer, Integer>> possibleAlignments;
+  private LinkSet sureAlignments;
+  private LinkSet possibleAlignments;
   private double score;
   
   public double getScore() { return score; }
   
   public void setScore(double score) { this.score = score; }
   
+  /**
+   * The sure alignments as (target position, source position) pairs.  Unlike
+   * the mutable HashSet this used to return, the set is a read-only view:
+   * changing it throws UnsupportedOperationException, so change the
+   * alignment with addPredictedAlignment() and removeAlignment() instead.
+   * The view sees those changes but not the new links made by swap() and
+   * the shift methods.  The Pairs are created while iterating.
+   */
   public Set<Pair<Integer,Integer>> getSureAlignments(){
+    return asPairs(sureAlignments);
+  }
+
+  /**
+   * The sure alignments, without boxing.
+   */
+  public LinkSet getSureLinks() {
     return sureAlignments;
   }
 
+  /**
+   * The possible alignments, sure ones included, without boxing.
+   */
+  public LinkSet getPossibleLinks() {
+    return possibleAlignments;
+  }
+
   public boolean containsSureAlignment(int targetPosition, int sourcePosition) {
-    return sureAlignments.contains(new Pair<Integer, Integer>(targetPosition, sourcePosition));
+    return sureAlignments.contains(targetPosition, sourcePosition);
   }
 
   public boolean containsPossibleAlignment(int targetPosition, int sourcePosition) {
-    return possibleAlignments.contains(new Pair<Integer, Integer>(targetPosition, sourcePosition));
+    return possibleAlignments.contains(targetPosition, sourcePosition);
   }
 
   public boolean removeAlignment(int targetPosition, int sourcePosition){
-    return sureAlignments.remove(new Pair<Integer, Integer>(targetPosition, sourcePosition));
+    return sureAlignments.remove(targetPosition, sourcePosition);
   }
 
   public void addPredictedAlignment(int targetPosition, int sourcePosition) {
@@ -48,11 +73,50 @@ public class Alignment {
   }
   
   public void addGoldAlignment(int targetPosition, int sourcePosition, boolean sure) {
-    Pair<Integer, Integer> alignment = new Pair<Integer, Integer>(targetPosition, sourcePosition);
     if (sure) {
-      sureAlignments.add(alignment);
+      sureAlignments.add(targetPosition, sourcePosition);
     }
-    possibleAlignments.add(alignment);
+    possibleAlignments.add(targetPosition, sourcePosition);
+  }
+
+  private static Set<Pair<Integer,Integer>> asPairs(final LinkSet links) {
+    return new AbstractSet<Pair<Integer,Integer>>() {
+      public Iterator<Pair<Integer,Integer>> iterator() {
+        final LinkSet.Cursor cursor = links.cursor();
+        return new Iterator<Pair<Integer,Integer>>() {
+          private int k = 0;
+
+          public boolean hasNext() {
+            return k < links.size();
+          }
+
+          public Pair<Integer,Integer> next() {
+            if (!hasNext() || !cursor.next()) {
+              throw new NoSuchElementException();
+            }
+            k++;
+            return new Pair<Integer,Integer>(cursor.target(), cursor.source());
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      public boolean contains(Object o) {
+        if (!(o instanceof Pair)) {
+          return false;
+        }
+        Pair<?,?> pair = (Pair<?,?>) o;
+        return pair.getFirst() instanceof Integer && pair.getSecond() instanceof Integer
+            && links.contains((Integer) pair.getFirst(), (Integer) pair.getSecond());
+      }
+
+      public int size() {
+        return links.size();
+      }
+    };
   }
 
   /*** START METHODS USED BY DECODE */
@@ -70,22 +134,23 @@ public class Alignment {
     int jlength = j2-j1+1;
     int diff = jlength - ilength;
 
-    Set<Pair<Integer,Integer>> newAlignments = new HashSet<Pair<Integer,Integer>>();
+    LinkSet newAlignments = new LinkSet();
 
-    for(Pair<Integer,Integer> alignment : sureAlignments){
-      int pos = alignment.getFirst();
+    LinkSet.Cursor alignment = sureAlignments.cursor();
+    while (alignment.next()) {
+      int pos = alignment.target();
 
       if(pos < i1 || pos > j2){
-        newAlignments.add(alignment);
+        newAlignments.add(pos, alignment.source());
       }
       else if (pos >= i1 && pos <= i2){
-        newAlignments.add(new Pair<Integer,Integer>(pos+j2-i2, alignment.getSecond()));
+        newAlignments.add(pos+j2-i2, alignment.source());
       }
       else if (pos > i2 && pos < j1){
-        newAlignments.add(new Pair<Integer,Integer>(pos+diff, alignment.getSecond()));
+        newAlignments.add(pos+diff, alignment.source());
       }
       else if(pos >= j1 && pos <= j2){
-        newAlignments.add(new Pair<Integer,Integer>(pos-j1+i1, alignment.getSecond()));
+        newAlignments.add(pos-j1+i1, alignment.source());
       }
       else{
         System.err.println("Error in Alignment.swap()");
@@ -99,9 +164,9 @@ public class Alignment {
 
   public String toString(){
     StringBuilder sb = new StringBuilder();
-    for(Pair<Integer,Integer> a : sureAlignments){
-      //sb.append(a+"; ");
-      String alignment = "(e" + a.getFirst() + ", f" + a.getSecond() + ")";
+    LinkSet.Cursor a = sureAlignments.cursor();
+    while (a.next()) {
+      String alignment = "(e" + a.target() + ", f" + a.source() + ")";
       sb.append(alignment+"; ");
     }
     return sb.toString();
@@ -110,20 +175,20 @@ public class Alignment {
 
   private void shiftAlignments(int targetPosition, boolean up, int changeto){
 
-    Set<Pair<Integer,Integer>> newAlignments = new HashSet<Pair<Integer,Integer>>();
+    LinkSet newAlignments = new LinkSet();
 
-    for(Pair<Integer,Integer> alignment : sureAlignments){
-      int pos = alignment.getFirst();
-      //System.out.println("shift: "+pos);
+    LinkSet.Cursor alignment = sureAlignments.cursor();
+    while (alignment.next()) {
+      int pos = alignment.target();
 
       if(pos < targetPosition){
-        newAlignments.add(alignment);
+        newAlignments.add(pos, alignment.source());
       }
       else if(pos == targetPosition){
-        newAlignments.add( new Pair<Integer,Integer>( (up ? pos+1 : changeto) , alignment.getSecond()) );
+        newAlignments.add( (up ? pos+1 : changeto) , alignment.source());
       }
       else if(pos > targetPosition){
-        newAlignments.add(new Pair<Integer,Integer>( (up ? pos+1 : pos-1), alignment.getSecond()) );
+        newAlignments.add( (up ? pos+1 : pos-1), alignment.source());
       }
     }
 
@@ -131,34 +196,25 @@ public class Alignment {
   }
 
   public int getAlignedTarget(int sourcePosition){
-    for(Pair<Integer,Integer> alignment : sureAlignments){
-      if(alignment.getSecond() == sourcePosition){
-        return alignment.getFirst();
+    LinkSet.Cursor alignment = sureAlignments.cursor();
+    while (alignment.next()) {
+      if(alignment.source() == sourcePosition){
+        return alignment.target();
       }
     }
     System.err.println("nothing aligned with "+sourcePosition);
     return -999;
   }
-
-  public Set<Integer> getAlignedSources(int targetPosition){
-    Set<Integer> sources = new HashSet<Integer>();
-    for(Pair<Integer,Integer> alignment : sureAlignments){
-      if(alignment.getFirst() == targetPosition){
-        sources.add(alignment.getSecond());
-      }
-    }
-    return sources;
-  }
   /* END METHODS USED BY DECODER ***/
 
   public Alignment(Alignment a){
-    sureAlignments = new HashSet<Pair<Integer,Integer>>(a.sureAlignments);
-    possibleAlignments = new HashSet<Pair<Integer,Integer>>(a.possibleAlignments);
+    sureAlignments = new LinkSet(a.sureAlignments);
+    possibleAlignments = new LinkSet(a.possibleAlignments);
   }
 
   public Alignment() {
-    sureAlignments = new HashSet<Pair<Integer, Integer>>();
-    possibleAlignments = new HashSet<Pair<Integer, Integer>>();
+    sureAlignments = new LinkSet();
+    possibleAlignments = new LinkSet();
   }
 
   public static String render(Alignment alignment, SentencePair sentencePair) {
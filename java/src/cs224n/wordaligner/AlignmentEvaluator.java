@@ -0,0 +1,156 @@
+package cs224n.wordaligner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scores proposed alignments against gold alignments with precision, recall
+ * and Alignment Error Rate (AER).  The link sets are intersected directly,
+ * so scoring a sentence takes time linear in its number of links rather than
+ * in the size of its alignment grid.  Only links inside the grid of the
+ * sentence pair are counted.
+ */
+public class AlignmentEvaluator {
+
+  private AlignmentEvaluator() {
+  }
+
+  /**
+   * Link counts of one or more sentences.  Scores of several sentences are
+   * combined by adding their counts.
+   */
+  public static class Score {
+    private int proposedSureCount;
+    private int proposedPossibleCount;
+    private int sureCount;
+    private int proposedCount;
+
+    public void add(Score other) {
+      proposedSureCount += other.proposedSureCount;
+      proposedPossibleCount += other.proposedPossibleCount;
+      sureCount += other.sureCount;
+      proposedCount += other.proposedCount;
+    }
+
+    public double getPrecision() {
+      return proposedPossibleCount / (double) proposedCount;
+    }
+
+    public double getRecall() {
+      return proposedSureCount / (double) sureCount;
+    }
+
+    public double getAER() {
+      return 1.0 - (proposedSureCount + proposedPossibleCount) / (double) (sureCount + proposedCount);
+    }
+
+    public String toString() {
+      return String.format("Precision: %.4f Recall: %.4f AER: %.4f", getPrecision(), getRecall(), getAER());
+    }
+  }
+
+  /**
+   * Scores the proposed alignment of one sentence pair.
+   */
+  public static Score score(SentencePair sentencePair, Alignment reference, Alignment proposed) {
+    int numSourceWords = sentencePair.getSourceWords().size();
+    int numTargetWords = sentencePair.getTargetWords().size();
+    Score score = new Score();
+
+    LinkSet.Cursor link = proposed.getSureLinks().cursor();
+    while (link.next()) {
+      int target = link.target();
+      int source = link.source();
+      if (inGrid(target, numTargetWords) && inGrid(source, numSourceWords)) {
+        score.proposedCount++;
+        if (reference.containsSureAlignment(target, source)) score.proposedSureCount++;
+        if (reference.containsPossibleAlignment(target, source)) score.proposedPossibleCount++;
+      }
+    }
+    link = reference.getSureLinks().cursor();
+    while (link.next()) {
+      if (inGrid(link.target(), numTargetWords) && inGrid(link.source(), numSourceWords)) {
+        score.sureCount++;
+      }
+    }
+    return score;
+  }
+
+  private static boolean inGrid(int position, int length) {
+    return position >= 0 && position < length;
+  }
+
+  /**
+   * Scores the proposed alignments of many sentence pairs on a pool of
+   * threads.
+   *
+   * @param sentencePairs
+   * @param proposed - the alignment of each sentence pair, in the same order
+   * @param references - gold alignments by sentence ID
+   * @param numThreads - one scores on the calling thread
+   * @return the score of each sentence pair, in order
+   */
+  public static Score[] scoreAll(final List<SentencePair> sentencePairs, final List<Alignment> proposed,
+                                 Map<Integer, Alignment> references, int numThreads) {
+    final Alignment[] gold = new Alignment[sentencePairs.size()];
+    for (int k = 0; k < gold.length; k++) {
+      gold[k] = references.get(sentencePairs.get(k).getSentenceID());
+      if (gold[k] == null) {
+        throw new RuntimeException("No reference alignment found for sentenceID "+sentencePairs.get(k).getSentenceID());
+      }
+    }
+
+    final Score[] scores = new Score[gold.length];
+    if (numThreads <= 1) {
+      for (int k = 0; k < scores.length; k++) {
+        scores[k] = score(sentencePairs.get(k), gold[k], proposed.get(k));
+      }
+      return scores;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int n = 0; n < numThreads; n++) {
+        final int from = (int) ((long) scores.length * n / numThreads);
+        final int to = (int) ((long) scores.length * (n + 1) / numThreads);
+        futures.add(executor.submit(new Callable<Void>() {
+          public Void call() {
+            for (int k = from; k < to; k++) {
+              scores[k] = score(sentencePairs.get(k), gold[k], proposed.get(k));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+    return scores;
+  }
+
+  /**
+   * Adds up the scores of many sentences.
+   */
+  public static Score total(Score[] scores) {
+    Score total = new Score();
+    for (Score score : scores) {
+      total.add(score);
+    }
+    return total;
+  }
+}
@@ -0,0 +1,157 @@
+package cs224n.wordaligner;
+
+import cs224n.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Aligns many sentence pairs with one trained aligner on a pool of threads.
+ * align() only reads the trained parameters, so every thread shares the
+ * aligner.  Alignments always come back in input order, so output files stay
+ * line-aligned with the input.
+ */
+public class BatchAligner {
+  // Sentence pairs aligned by one task.
+  private static final int BATCH_SIZE = 256;
+  // Batches read ahead per thread when streaming.
+  private static final int BATCHES_PER_THREAD = 4;
+
+  private final WordAligner wordAligner;
+  private final int numThreads;
+
+  /**
+   * @param wordAligner - a trained aligner
+   * @param numThreads - one aligns on the calling thread
+   */
+  public BatchAligner(WordAligner wordAligner, int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("Number of threads must be positive: " + numThreads);
+    }
+    this.wordAligner = wordAligner;
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * Aligns a list of sentence pairs.
+   *
+   * @return the alignment of each pair, in the order of the list
+   */
+  public List<Alignment> alignAll(List<SentencePair> sentencePairs) {
+    List<Alignment> alignments = new ArrayList<Alignment>(sentencePairs.size());
+    Iterator<Pair<SentencePair, Alignment>> aligned = align(sentencePairs.iterator());
+    while (aligned.hasNext()) {
+      alignments.add(aligned.next().getSecond());
+    }
+    return alignments;
+  }
+
+  /**
+   * Aligns a stream of sentence pairs.  Pairs are read ahead in batches and
+   * aligned in the background while the caller consumes earlier results, so
+   * only a bounded number of pairs is held in memory.  The worker threads
+   * stop once the last pair is returned.
+   *
+   * @return each pair with its alignment, in input order
+   */
+  public Iterator<Pair<SentencePair, Alignment>> align(final Iterator<SentencePair> sentencePairs) {
+    return new Iterator<Pair<SentencePair, Alignment>>() {
+      private final ExecutorService executor = numThreads > 1 ?
+          Executors.newFixedThreadPool(numThreads, DAEMON_THREADS) : null;
+      private final LinkedList<List<SentencePair>> pendingBatches = new LinkedList<List<SentencePair>>();
+      private final LinkedList<Future<List<Alignment>>> pendingAlignments = new LinkedList<Future<List<Alignment>>>();
+      private List<SentencePair> batch = Collections.emptyList();
+      private List<Alignment> alignments;
+      private int k = 0;
+
+      // Submits batches until enough are in flight or the input runs out.
+      private void fill() {
+        int maxPending = executor == null ? 1 : numThreads * BATCHES_PER_THREAD;
+        while (pendingBatches.size() < maxPending && sentencePairs.hasNext()) {
+          final List<SentencePair> next = new ArrayList<SentencePair>(BATCH_SIZE);
+          while (next.size() < BATCH_SIZE && sentencePairs.hasNext()) {
+            next.add(sentencePairs.next());
+          }
+          Callable<List<Alignment>> task = new Callable<List<Alignment>>() {
+            public List<Alignment> call() {
+              List<Alignment> result = new ArrayList<Alignment>(next.size());
+              for (SentencePair sentencePair : next) {
+                result.add(wordAligner.align(sentencePair));
+              }
+              return result;
+            }
+          };
+          pendingBatches.add(next);
+          if (executor == null) {
+            FutureTask<List<Alignment>> future = new FutureTask<List<Alignment>>(task);
+            future.run();
+            pendingAlignments.add(future);
+          } else {
+            pendingAlignments.add(executor.submit(task));
+          }
+        }
+      }
+
+      public boolean hasNext() {
+        if (k < batch.size()) {
+          return true;
+        }
+        fill();
+        if (pendingBatches.isEmpty()) {
+          if (executor != null) {
+            executor.shutdown();
+          }
+          return false;
+        }
+        batch = pendingBatches.removeFirst();
+        alignments = get(pendingAlignments.removeFirst());
+        k = 0;
+        return true;
+      }
+
+      public Pair<SentencePair, Alignment> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Pair<SentencePair, Alignment> pair = new Pair<SentencePair, Alignment>(batch.get(k), alignments.get(k));
+        k++;
+        return pair;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private static List<Alignment> get(Future<List<Alignment>> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  // Workers must not keep the JVM alive if a caller abandons an iterator.
+  private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = Executors.defaultThreadFactory().newThread(r);
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+}
@@ -0,0 +1,236 @@
+package cs224n.wordaligner;
+
+import java.util.Arrays;
+
+/**
+ * Numbers every (source, target) pair that occurs in a corpus, NULL word
+ * included, and records for every sentence pair the slot of each of its
+ * alignment cells.  Probabilities and counts then live in flat double arrays
+ * indexed by slot, and an E-step is a gather and a scatter over int and
+ * double arrays: no hashing and no allocation.
+ *
+ * Slots are ordered by source, then target, so the slots of a source word
+ * are contiguous and normalizing them is a pass over a range.
+ *
+ * The index holds one int for every alignment cell of the corpus, which for
+ * a large corpus is more memory than the corpus itself.
+ */
+public class CooccurrenceIndex {
+  // Slots of source s are [sourceStarts[s], sourceStarts[s + 1]).
+  private final int[] sourceStarts;
+  // Target of each slot.
+  private final int[] targets;
+  // Slots of each sentence pair: one row per target position i, holding the
+  // slot of (source j, target i) for j < m and of (NULL, target i) last.
+  private final int[][] sentenceSlots;
+  // Length of the rows of each sentence pair: source length plus one.
+  private final int[] rowLengths;
+
+  private CooccurrenceIndex(int[] sourceStarts, int[] targets, int[][] sentenceSlots, int[] rowLengths) {
+    this.sourceStarts = sourceStarts;
+    this.targets = targets;
+    this.sentenceSlots = sentenceSlots;
+    this.rowLengths = rowLengths;
+  }
+
+  private static long pack(int source, int target) {
+    return ((long) source << 32) | (target & 0xffffffffL);
+  }
+
+  /**
+   * Indexes the corpus, reading it twice.
+   */
+  public static CooccurrenceIndex build(IndexedCorpus corpus) {
+    // Collect the distinct pairs, then number them in sorted order.
+    SlotMap slotMap = new SlotMap();
+    IndexedCorpus.SentenceReader reader = corpus.read();
+    while (reader.next()) {
+      int[] sourceWords = reader.getSourceSentence();
+      for (int target : reader.getTargetSentence()) {
+        for (int source : sourceWords) {
+          slotMap.add(pack(source, target));
+        }
+        slotMap.add(pack(IndexedCorpus.NULL_INDEX, target));
+      }
+    }
+    reader.close();
+    long[] pairs = slotMap.keys();
+    Arrays.sort(pairs);
+
+    int numSources = corpus.getSourceIndexer().size();
+    int[] sourceStarts = new int[numSources + 1];
+    int[] targets = new int[pairs.length];
+    for (int slot = 0; slot < pairs.length; slot++) {
+      slotMap.put(pairs[slot], slot);
+      sourceStarts[(int) (pairs[slot] >>> 32) + 1]++;
+      targets[slot] = (int) pairs[slot];
+    }
+    for (int source = 0; source < numSources; source++) {
+      sourceStarts[source + 1] += sourceStarts[source];
+    }
+
+    int[][] sentenceSlots = new int[corpus.size()][];
+    int[] rowLengths = new int[corpus.size()];
+    reader = corpus.read();
+    for (int k = 0; reader.next(); k++) {
+      int[] sourceWords = reader.getSourceSentence();
+      int[] targetWords = reader.getTargetSentence();
+      int width = sourceWords.length + 1;
+      int[] slots = new int[targetWords.length * width];
+      for (int i = 0; i < targetWords.length; i++) {
+        for (int j = 0; j < sourceWords.length; j++) {
+          slots[i * width + j] = slotMap.get(pack(sourceWords[j], targetWords[i]));
+        }
+        slots[i * width + sourceWords.length] = slotMap.get(pack(IndexedCorpus.NULL_INDEX, targetWords[i]));
+      }
+      sentenceSlots[k] = slots;
+      rowLengths[k] = width;
+    }
+    reader.close();
+    return new CooccurrenceIndex(sourceStarts, targets, sentenceSlots, rowLengths);
+  }
+
+  /**
+   * The number of sentence pairs.
+   */
+  public int size() {
+    return sentenceSlots.length;
+  }
+
+  /**
+   * The number of distinct (source, target) pairs.
+   */
+  public int numSlots() {
+    return targets.length;
+  }
+
+  /**
+   * The slots of sentence pair k, row by row: row i holds the m + 1 slots of
+   * target position i, the NULL word's last.  Do not modify.
+   */
+  public int[] getSlots(int k) {
+    return sentenceSlots[k];
+  }
+
+  /**
+   * The length of a row of getSlots(k): the source length plus one.
+   */
+  public int getRowLength(int k) {
+    return rowLengths[k];
+  }
+
+  /**
+   * Normalizes the values of each source's slots to sum to one, in place,
+   * like IntCounterMap.conditionalNormalize(previous).
+   *
+   * @param values - a value per slot
+   * @param previous - the values these replace, or null
+   * @return the largest absolute change of a value (NaN if one is NaN), or
+   *         infinity if previous is null
+   */
+  public double conditionalNormalize(double[] values, double[] previous) {
+    double maxChange = previous == null ? Double.POSITIVE_INFINITY : 0.0;
+    for (int source = 0; source + 1 < sourceStarts.length; source++) {
+      int from = sourceStarts[source];
+      int to = sourceStarts[source + 1];
+      double total = 0.0;
+      for (int slot = from; slot < to; slot++) {
+        total += values[slot];
+      }
+      if (total == 0.0) {
+        continue;
+      }
+      for (int slot = from; slot < to; slot++) {
+        values[slot] /= total;
+        if (previous != null) {
+          double change = Math.abs(values[slot] - previous[slot]);
+          // Once NaN, stays NaN.
+          if (change > maxChange || Double.isNaN(change)) {
+            maxChange = change;
+          }
+        }
+      }
+    }
+    return maxChange;
+  }
+
+  /**
+   * Copies a value per slot into a translation table.
+   */
+  public TranslationTable toTranslationTable(double[] values) {
+    TranslationTable t = new TranslationTable(targets.length);
+    for (int source = 0; source + 1 < sourceStarts.length; source++) {
+      for (int slot = sourceStarts[source]; slot < sourceStarts[source + 1]; slot++) {
+        t.setCount(source, targets[slot], values[slot]);
+      }
+    }
+    return t;
+  }
+
+  // Open-addressing map from packed pairs to slots, with linear probing.
+  private static class SlotMap {
+    private static final long EMPTY = -1L;
+    private static final double MAX_LOAD = 0.6;
+
+    private long[] keys = new long[1024];
+    private int[] values = new int[1024];
+    private int size;
+
+    SlotMap() {
+      Arrays.fill(keys, EMPTY);
+    }
+
+    private int slot(long key) {
+      int mask = keys.length - 1;
+      long mixed = key * 0x9E3779B97F4A7C15L;
+      int slot = (int) (mixed ^ (mixed >>> 32)) & mask;
+      while (keys[slot] != EMPTY && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    void add(long key) {
+      int slot = slot(key);
+      if (keys[slot] == EMPTY) {
+        if (size + 1 > keys.length * MAX_LOAD) {
+          rehash();
+          slot = slot(key);
+        }
+        keys[slot] = key;
+        size++;
+      }
+    }
+
+    void put(long key, int value) {
+      values[slot(key)] = value;
+    }
+
+    int get(long key) {
+      return values[slot(key)];
+    }
+
+    long[] keys() {
+      long[] present = new long[size];
+      int k = 0;
+      for (long key : keys) {
+        if (key != EMPTY) {
+          present[k++] = key;
+        }
+      }
+      return present;
+    }
+
+    private void rehash() {
+      long[] oldKeys = keys;
+      keys = new long[oldKeys.length << 1];
+      values = new int[keys.length];
+      Arrays.fill(keys, EMPTY);
+      for (long key : oldKeys) {
+        if (key != EMPTY) {
+          keys[slot(key)] = key;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package cs224n.wordaligner;
+
+import cs224n.util.BinaryIO;
+import cs224n.util.Indexer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An IndexedCorpus kept in a compiled corpus file instead of on the heap, for
+ * corpora larger than memory and for skipping text parsing on later runs.
+ * The sentences are memory-mapped; only the vocabularies and a sparse offset
+ * index are loaded.
+ *
+ * File layout, all big-endian:
+ * <pre>
+ *   int magic, int version, long position of the index
+ *   per sentence pair: int m, int n, m source indices, n target indices
+ *   index: int size, int blocks, long[blocks] offset of every BLOCK_SIZE-th
+ *          sentence (in ints from the first sentence), then the source and
+ *          target vocabularies as written by BinaryIO.writeIndexer()
+ * </pre>
+ * The index comes last so a corpus can be compiled in one streaming pass.
+ */
+public class DiskCorpus extends IndexedCorpus {
+  private static final int MAGIC = 0x43533241;
+  private static final int VERSION = 1;
+  private static final long HEADER_BYTES = 16;
+  // Sentences between two entries of the offset index.
+  private static final int BLOCK_SIZE = 1024;
+  private static final int BUFFER_SIZE = 1 << 16;
+  // Ints per mapped segment; a single mapping cannot exceed 2GB.
+  private static final int SEGMENT_SHIFT = 28;
+  private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+  private final File file;
+  private final int size;
+  private final long[] blockOffsets;
+  private final IntBuffer[] segments;
+
+  private DiskCorpus(Indexer<String> sourceIndexer, Indexer<String> targetIndexer,
+                     File file, int size, long[] blockOffsets, IntBuffer[] segments) {
+    super(sourceIndexer, targetIndexer);
+    this.file = file;
+    this.size = size;
+    this.blockOffsets = blockOffsets;
+    this.segments = segments;
+  }
+
+  /**
+   * Indexes a stream of sentence pairs and compiles them into a corpus file,
+   * without holding more than one pair in memory.
+   *
+   * @param sentencePairs - the training data, read once
+   * @param file - where to write the corpus, or null for a temporary file
+   *        deleted on exit
+   * @return the corpus, loaded from the file
+   */
+  public static DiskCorpus build(Iterator<SentencePair> sentencePairs, File file) {
+    Indexer<String> sourceIndexer = newSourceIndexer();
+    Indexer<String> targetIndexer = new Indexer<String>();
+    List<Long> blockOffsets = new ArrayList<Long>();
+    int size = 0;
+    long offset = 0;
+    try {
+      if (file == null) {
+        file = File.createTempFile("corpus", ".bin");
+        file.deleteOnExit();
+      }
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      // Patched below once the position of the index is known.
+      out.writeLong(0L);
+      while (sentencePairs.hasNext()) {
+        SentencePair pair = sentencePairs.next();
+        if (size % BLOCK_SIZE == 0) {
+          blockOffsets.add(offset);
+        }
+        int[] sourceSentence = index(sourceIndexer, pair.getSourceWords());
+        int[] targetSentence = index(targetIndexer, pair.getTargetWords());
+        out.writeInt(sourceSentence.length);
+        out.writeInt(targetSentence.length);
+        for (int source : sourceSentence) {
+          out.writeInt(source);
+        }
+        for (int target : targetSentence) {
+          out.writeInt(target);
+        }
+        offset += 2 + sourceSentence.length + targetSentence.length;
+        size++;
+      }
+
+      out.writeInt(size);
+      out.writeInt(blockOffsets.size());
+      for (long blockOffset : blockOffsets) {
+        out.writeLong(blockOffset);
+      }
+      BinaryIO.writeIndexer(out, sourceIndexer);
+      BinaryIO.writeIndexer(out, targetIndexer);
+      out.close();
+
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      raf.seek(8);
+      raf.writeLong(HEADER_BYTES + 4 * offset);
+      raf.close();
+
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return load(file);
+  }
+
+  /**
+   * Opens a compiled corpus file.  Only the index and vocabularies are read;
+   * the sentences are mapped into memory.
+   */
+  public static DiskCorpus load(File file) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+        raf.close();
+        throw new RuntimeException("Not a compiled corpus file: " + file);
+      }
+      long indexPosition = raf.readLong();
+      FileChannel channel = raf.getChannel();
+
+      ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, indexPosition, raf.length() - indexPosition);
+      int size = in.getInt();
+      long[] blockOffsets = new long[in.getInt()];
+      in.asLongBuffer().get(blockOffsets);
+      in.position(in.position() + 8 * blockOffsets.length);
+      Indexer<String> sourceIndexer = BinaryIO.readIndexer(in);
+      Indexer<String> targetIndexer = BinaryIO.readIndexer(in);
+
+      long ints = (indexPosition - HEADER_BYTES) / 4;
+      IntBuffer[] segments = new IntBuffer[(int) ((ints + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+      for (int i = 0; i < segments.length; i++) {
+        long start = (long) i << SEGMENT_SHIFT;
+        long length = Math.min(SEGMENT_MASK + 1, ints - start);
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+            HEADER_BYTES + 4 * start, 4 * length).asIntBuffer();
+      }
+      // The mappings stay valid once the file is closed.
+      raf.close();
+      return new DiskCorpus(sourceIndexer, targetIndexer, file, size, blockOffsets, segments);
+
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * The compiled corpus file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private int get(long position) {
+    return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+  }
+
+  public SentenceReader read(final int from, final int to) {
+    return new SentenceReader() {
+      private int k;
+      private long position;
+      private int[] sourceSentence;
+      private int[] targetSentence;
+
+      {
+        // Start at the block holding the first sentence and skip ahead.
+        int block = from / BLOCK_SIZE;
+        k = block * BLOCK_SIZE - 1;
+        position = block < blockOffsets.length ? blockOffsets[block] : 0;
+        while (k + 1 < from) {
+          next();
+        }
+      }
+
+      public boolean next() {
+        if (++k >= to) {
+          return false;
+        }
+        sourceSentence = new int[get(position++)];
+        targetSentence = new int[get(position++)];
+        for (int i = 0; i < sourceSentence.length; i++) {
+          sourceSentence[i] = get(position++);
+        }
+        for (int i = 0; i < targetSentence.length; i++) {
+          targetSentence[i] = get(position++);
+        }
+        return true;
+      }
+
+      public int[] getSourceSentence() {
+        return sourceSentence;
+      }
+
+      public int[] getTargetSentence() {
+        return targetSentence;
+      }
+
+      public void close() {
+      }
+    };
+  }
+}
@@ -0,0 +1,278 @@
+package cs224n.wordaligner;
+
+import cs224n.util.BinaryIO;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Distortion probabilities q(j|i,m,n) of IBM Model 2 stored in one flat
+ * double array.  Here i is a target position, j a source position (j == m
+ * is the NULL word), m the source length and n the target length.
+ *
+ * Every (m, n) bucket seen in the corpus owns a block of n * (m + 1) values,
+ * one row of m + 1 source positions per target position, so a whole row is
+ * addressed by a single int offset.  Lengths above maxLength share the bucket
+ * of maxLength, with positions scaled into it; this keeps the table small
+ * when a corpus has a few very long sentences.
+ */
+public class DistortionTable implements Serializable {
+  private static final long serialVersionUID = -4719350785520474151L;
+
+  public static final int DEFAULT_MAX_LENGTH = 100;
+
+  private final int maxLength;
+  // (m, n) bucket => offset of its block in values, or -1 if not in the table.
+  private final int[] bucketOffsets;
+  private final double[] values;
+
+  private DistortionTable(int maxLength, int[] bucketOffsets, double[] values) {
+    this.maxLength = maxLength;
+    this.bucketOffsets = bucketOffsets;
+    this.values = values;
+  }
+
+  /**
+   * Allocates a zeroed table with a bucket for every sentence length pair of
+   * the corpus.
+   */
+  public static DistortionTable forCorpus(IndexedCorpus corpus, int maxLength) {
+    int[] bucketOffsets = new int[(maxLength + 1) * (maxLength + 1)];
+    Arrays.fill(bucketOffsets, -1);
+    int size = 0;
+    IndexedCorpus.SentenceReader reader = corpus.read();
+    while (reader.next()) {
+      int m = Math.min(reader.getSourceSentence().length, maxLength);
+      int n = Math.min(reader.getTargetSentence().length, maxLength);
+      int bucket = m * (maxLength + 1) + n;
+      if (bucketOffsets[bucket] < 0) {
+        bucketOffsets[bucket] = size;
+        size += n * (m + 1);
+      }
+    }
+    reader.close();
+    return new DistortionTable(maxLength, bucketOffsets, new double[size]);
+  }
+
+  /**
+   * Returns a table that adds the sentence length pairs of the corpus this
+   * one has no bucket for, with uniform distributions, or this table if it
+   * has them all.
+   */
+  public DistortionTable extend(IndexedCorpus corpus) {
+    int[] newOffsets = bucketOffsets.clone();
+    int size = values.length;
+    IndexedCorpus.SentenceReader reader = corpus.read();
+    while (reader.next()) {
+      int m = Math.min(reader.getSourceSentence().length, maxLength);
+      int n = Math.min(reader.getTargetSentence().length, maxLength);
+      int bucket = m * (maxLength + 1) + n;
+      if (newOffsets[bucket] < 0) {
+        newOffsets[bucket] = size;
+        size += n * (m + 1);
+      }
+    }
+    reader.close();
+    if (size == values.length) {
+      return this;
+    }
+    double[] newValues = Arrays.copyOf(values, size);
+    for (int bucket = 0; bucket < newOffsets.length; bucket++) {
+      if (newOffsets[bucket] >= values.length) {
+        int m = bucket / (maxLength + 1);
+        int n = bucket % (maxLength + 1);
+        Arrays.fill(newValues, newOffsets[bucket], newOffsets[bucket] + n * (m + 1), 1.0 / (m + 1));
+      }
+    }
+    return new DistortionTable(maxLength, newOffsets, newValues);
+  }
+
+  /**
+   * Sentence lengths above this share the bucket of this length.
+   */
+  public int getMaxLength() {
+    return maxLength;
+  }
+
+  /**
+   * Returns a zeroed table with the same buckets, for collecting counts.
+   */
+  public DistortionTable newCounts() {
+    return new DistortionTable(maxLength, bucketOffsets, new double[values.length]);
+  }
+
+  /**
+   * Offset of the row q(.|i,m,n), or -1 if the table has no bucket for the
+   * sentence lengths.  Pass it to getCount(offset, j, m) and
+   * incrementCount(offset, j, m, count).
+   */
+  public int offset(int i, int m, int n) {
+    int bucketM = Math.min(m, maxLength);
+    int bucketN = Math.min(n, maxLength);
+    int bucketOffset = bucketOffsets[bucketM * (maxLength + 1) + bucketN];
+    if (bucketOffset < 0) {
+      return -1;
+    }
+    return bucketOffset + scale(i, n, bucketN) * (bucketM + 1);
+  }
+
+  // Maps position j of a length m sentence into its bucket.
+  private int position(int j, int m) {
+    if (m <= maxLength) {
+      return j;
+    }
+    return j == m ? maxLength : scale(j, m, maxLength);
+  }
+
+  private static int scale(int position, int length, int bucketLength) {
+    return length == bucketLength ? position : (int) ((long) position * bucketLength / length);
+  }
+
+  public double getCount(int offset, int j, int m) {
+    return offset < 0 ? 0.0 : values[offset + position(j, m)];
+  }
+
+  public void incrementCount(int offset, int j, int m, double count) {
+    values[offset + position(j, m)] += count;
+  }
+
+  public void setCount(int offset, int j, int m, double count) {
+    values[offset + position(j, m)] = count;
+  }
+
+  /**
+   * Gets q(j|i,m,n), or zero if the table has no bucket for the lengths.
+   */
+  public double getCount(int i, int m, int n, int j) {
+    return getCount(offset(i, m, n), j, m);
+  }
+
+  /**
+   * Adds the counts of another table with the same buckets to this one.
+   */
+  public void incrementAll(DistortionTable other) {
+    for (int i = 0; i < values.length; i++) {
+      values[i] += other.values[i];
+    }
+  }
+
+  /**
+   * Normalizes every row q(.|i,m,n) to sum to one, in place.
+   *
+   * @return this table
+   */
+  public DistortionTable conditionalNormalize() {
+    conditionalNormalize(null);
+    return this;
+  }
+
+  /**
+   * Normalizes like conditionalNormalize(), measuring in the same pass how
+   * far each probability moved from the one in previous.  Rows whose counts
+   * sum to zero, as when every pair of a target word was pruned with a zero
+   * floor, stay at zero and are not measured.
+   *
+   * @param previous - a table with the same buckets, or null
+   * @return the largest absolute change of a probability (NaN if one is
+   *         NaN), or infinity if previous is null
+   */
+  public double conditionalNormalize(DistortionTable previous) {
+    double maxChange = previous == null ? Double.POSITIVE_INFINITY : 0.0;
+    int bucket = 0;
+    for (int m = 0; m <= maxLength; m++) {
+      for (int n = 0; n <= maxLength; n++, bucket++) {
+        int offset = bucketOffsets[bucket];
+        if (offset < 0) {
+          continue;
+        }
+        for (int row = offset; row < offset + n * (m + 1); row += m + 1) {
+          double total = 0.0;
+          for (int j = row; j <= row + m; j++) {
+            total += values[j];
+          }
+          if (total == 0.0) {
+            continue;
+          }
+          for (int j = row; j <= row + m; j++) {
+            values[j] /= total;
+            if (previous != null) {
+              double change = Math.abs(values[j] - previous.values[j]);
+              // Once NaN, stays NaN.
+              if (change > maxChange || Double.isNaN(change)) {
+                maxChange = change;
+              }
+            }
+          }
+        }
+      }
+    }
+    return maxChange;
+  }
+
+  /**
+   * Moves every row q(.|i,m,n) a step towards the normalized counts of
+   * another table with the same buckets, like IntCounterMap.interpolate().
+   * Rows without counts are left alone, and rows that are all zero here take
+   * the normalized counts outright.
+   *
+   * @param counts - counts, not necessarily normalized
+   * @param weight - step size in [0, 1]
+   */
+  public void interpolate(DistortionTable counts, double weight) {
+    int bucket = 0;
+    for (int m = 0; m <= maxLength; m++) {
+      for (int n = 0; n <= maxLength; n++, bucket++) {
+        int offset = bucketOffsets[bucket];
+        if (offset < 0) {
+          continue;
+        }
+        for (int row = offset; row < offset + n * (m + 1); row += m + 1) {
+          double countTotal = 0.0;
+          double total = 0.0;
+          for (int j = row; j <= row + m; j++) {
+            countTotal += counts.values[j];
+            total += values[j];
+          }
+          if (countTotal == 0.0) {
+            continue;
+          }
+          double step = total > 0.0 ? weight : 1.0;
+          for (int j = row; j <= row + m; j++) {
+            values[j] = (1.0 - step) * values[j] + step * counts.values[j] / countTotal;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets every value to zero, so the table can collect counts again.
+   */
+  public void clear() {
+    Arrays.fill(values, 0.0);
+  }
+
+  /**
+   * Writes the buckets and values, to be restored by readFrom().
+   */
+  public void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(maxLength);
+    BinaryIO.writeInts(out, bucketOffsets);
+    BinaryIO.writeDoubles(out, values);
+  }
+
+  public static DistortionTable readFrom(ByteBuffer in) {
+    int maxLength = in.getInt();
+    return new DistortionTable(maxLength, BinaryIO.readInts(in), BinaryIO.readDoubles(in));
+  }
+
+  /**
+   * The number of values stored.
+   */
+  public int size() {
+    return values.length;
+  }
+}
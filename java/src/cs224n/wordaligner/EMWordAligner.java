@@ -0,0 +1,620 @@
+package cs224n.wordaligner;
+
+import cs224n.util.StripedIntCounterMap;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Base class for aligners trained with EM.  The E-step of each iteration can
+ * be split across worker threads: the corpus is cut into contiguous shards,
+ * each worker collects expected counts for one shard into its own tables, and
+ * the tables are merged in shard order so the result does not depend on
+ * thread scheduling.
+ *
+ * Trained parameters are saved to and loaded from binary model files.  A
+ * trained (or loaded) model can be updated with new sentence pairs by online
+ * EM, see update().
+ */
+public abstract class EMWordAligner implements SavableWordAligner {
+  private static final long serialVersionUID = -2213532738361187361L;
+
+  // Maximum number of iterations.
+  // TODO: determine a proper value
+  protected static final int T = 50;
+  // Largest change in a probability still considered converged.
+  protected static final double EPSILON = 1e-4;
+
+  // Default probability of translation pairs dropped by pruning.
+  public static final double DEFAULT_PRUNE_FLOOR = 1e-7;
+  // Looked up in place of a pruned probability, to tell the pair is missing.
+  protected static final double PRUNED = -1.0;
+
+  // Stripes per thread of a shared count table.
+  private static final int STRIPES_PER_THREAD = 16;
+  // Pieces per thread the corpus is cut into for fork/join training.
+  private static final int FORK_JOIN_PIECES_PER_THREAD = 8;
+
+  // Default exponent of the online EM step size.
+  public static final double DEFAULT_STEP_SIZE_EXPONENT = 0.7;
+
+  private int maxIterations = T;
+  private int numThreads = 1;
+  private boolean verbose = true;
+  // Pruning of t between iterations; off unless a threshold or top-K is set.
+  private double pruneThreshold = 0.0;
+  private int pruneTopK = 0;
+  private double pruneFloor = DEFAULT_PRUNE_FLOOR;
+  private double stepSizeExponent = DEFAULT_STEP_SIZE_EXPONENT;
+  private boolean lengthBucketing = false;
+  private boolean cooccurrenceIndexing = false;
+  private EStepKernel kernel = EStepKernel.SCALAR;
+  private boolean forkJoin = false;
+  private boolean sharedCounts = false;
+  // Sentence pairs the model has been trained on, which sets the online step size.
+  private long numTrainingSentences = 0;
+  // Tells apart the iterations of aligners trained together.
+  private String label = "";
+  // Told about every iteration; not part of a serialized model.
+  private transient List<TrainingListener> listeners;
+
+  /**
+   * Set the largest number of EM iterations; T by default.  Training stops
+   * earlier if it converges.
+   */
+  public void setMaxIterations(int maxIterations) {
+    if (maxIterations < 1) {
+      throw new IllegalArgumentException("Number of iterations must be positive: " + maxIterations);
+    }
+    this.maxIterations = maxIterations;
+  }
+
+  public int getMaxIterations() {
+    return maxIterations;
+  }
+
+  /**
+   * Set whether training progress is printed; it is by default.
+   */
+  public void setVerbose(boolean verbose) {
+    this.verbose = verbose;
+  }
+
+  public boolean isVerbose() {
+    return verbose;
+  }
+
+  /**
+   * Prints a line of training progress, unless verbose is off.
+   */
+  protected void log(String message) {
+    if (verbose) {
+      System.out.println(message);
+    }
+  }
+
+  /**
+   * Set the number of threads used for the E-step.  One (the default) trains
+   * serially on the calling thread.
+   */
+  public void setNumThreads(int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("Number of threads must be positive: " + numThreads);
+    }
+    this.numThreads = numThreads;
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Prune the translation table after every M-step, dropping probabilities
+   * below threshold and all but the topK most likely targets of each source
+   * word.  Dropped pairs get probability floor and no longer collect counts,
+   * so later iterations are faster and use less memory.
+   *
+   * @param threshold - 0 for no threshold
+   * @param topK - 0 for no limit
+   * @param floor - probability of dropped pairs
+   */
+  public void setPruning(double threshold, int topK, double floor) {
+    if (threshold < 0 || topK < 0 || floor < 0) {
+      throw new IllegalArgumentException("Pruning settings must not be negative");
+    }
+    this.pruneThreshold = threshold;
+    this.pruneTopK = topK;
+    this.pruneFloor = floor;
+  }
+
+  public double getPruneThreshold() {
+    return pruneThreshold;
+  }
+
+  public int getPruneTopK() {
+    return pruneTopK;
+  }
+
+  public double getPruneFloor() {
+    return pruneFloor;
+  }
+
+  /**
+   * Set whether training first sorts the corpus into buckets of equal
+   * sentence lengths (see IndexedCorpus.byLength()), for better locality in
+   * the E-step and shards of balanced work.  The sorted corpus is held in
+   * memory.  Off by default.
+   */
+  public void setLengthBucketing(boolean lengthBucketing) {
+    this.lengthBucketing = lengthBucketing;
+  }
+
+  public boolean isLengthBucketing() {
+    return lengthBucketing;
+  }
+
+  /**
+   * Set whether Model 1 training first builds a CooccurrenceIndex, so that
+   * every E-step is array arithmetic over slots instead of hash lookups.
+   * The index takes an int per alignment cell of the corpus.  Not used when
+   * pruning.  Off by default.
+   */
+  public void setCooccurrenceIndexing(boolean cooccurrenceIndexing) {
+    this.cooccurrenceIndexing = cooccurrenceIndexing;
+  }
+
+  public boolean isCooccurrenceIndexing() {
+    return cooccurrenceIndexing;
+  }
+
+  /**
+   * Set the kernel that turns alignment probabilities into posteriors in
+   * the E-step; SCALAR by default.  The kernel is checked against SCALAR
+   * first.
+   *
+   * @throws IllegalStateException if its results differ beyond rounding
+   */
+  public void setKernel(EStepKernel kernel) {
+    kernel.verify();
+    this.kernel = kernel;
+  }
+
+  public EStepKernel getKernel() {
+    return kernel;
+  }
+
+  /**
+   * Set whether the E-step runs as a fork/join reduction instead of one
+   * static shard per thread: the corpus is halved recursively into many
+   * small pieces, idle threads steal pieces from busy ones, and the counts
+   * of the pieces are merged pairwise up the tree.  This keeps every thread
+   * busy when sentence lengths, and so the work per piece, vary a lot.  The
+   * tree depends only on the corpus size, so results do not depend on
+   * scheduling.  Used by training over translation tables; Model 1 over a
+   * CooccurrenceIndex keeps its static shards, since each piece would need
+   * a count per slot.  Off by default.
+   */
+  public void setForkJoin(boolean forkJoin) {
+    this.forkJoin = forkJoin;
+  }
+
+  public boolean isForkJoin() {
+    return forkJoin;
+  }
+
+  /**
+   * Set whether the E-step workers of static shards add their translation
+   * counts to one shared StripedIntCounterMap instead of a table each, so
+   * the memory for counts does not grow with the number of threads.
+   * Workers then contend for the stripes' locks, and counts are summed in
+   * scheduling order, so results can differ in the last bits from run to
+   * run.  Not used by fork/join training, by Model 1 over a
+   * CooccurrenceIndex or by update().  Off by default.
+   */
+  public void setSharedCounts(boolean sharedCounts) {
+    this.sharedCounts = sharedCounts;
+  }
+
+  public boolean isSharedCounts() {
+    return sharedCounts;
+  }
+
+  /**
+   * Returns a table for the E-step workers to share if setSharedCounts() is
+   * on and static shards are used, or null.
+   *
+   * @param expectedSize - expected number of (source, target) pairs
+   */
+  protected StripedIntCounterMap newSharedCounts(int expectedSize) {
+    if (!sharedCounts || forkJoin) {
+      return null;
+    }
+    return new StripedIntCounterMap(STRIPES_PER_THREAD * numThreads, expectedSize);
+  }
+
+  /**
+   * Returns the corpus in the order training should visit it, as set by
+   * setLengthBucketing().
+   */
+  protected IndexedCorpus schedule(IndexedCorpus corpus) {
+    return lengthBucketing ? corpus.byLength() : corpus;
+  }
+
+  /**
+   * Set the exponent a of the online EM step size (b / (n + b))^a, for a
+   * mini-batch of b sentence pairs given to a model trained on n.  With a = 1
+   * every sentence pair seen weighs the same; smaller exponents favour
+   * recent data.
+   */
+  public void setStepSizeExponent(double stepSizeExponent) {
+    if (!(stepSizeExponent > 0 && stepSizeExponent <= 1)) {
+      throw new IllegalArgumentException("Step size exponent must be in (0, 1]: " + stepSizeExponent);
+    }
+    this.stepSizeExponent = stepSizeExponent;
+  }
+
+  public double getStepSizeExponent() {
+    return stepSizeExponent;
+  }
+
+  /**
+   * The number of sentence pairs the model has been trained on, by train()
+   * and update().  It is saved with the model.
+   */
+  public long getNumTrainingSentences() {
+    return numTrainingSentences;
+  }
+
+  /**
+   * Overrides the number of sentence pairs the model has been trained on,
+   * and with it how far the next update() moves the parameters.
+   */
+  public void setNumTrainingSentences(long numTrainingSentences) {
+    this.numTrainingSentences = numTrainingSentences;
+  }
+
+  /**
+   * Returns the step size of an online update with a mini-batch of
+   * batchSize sentence pairs, and counts them as trained on.
+   */
+  protected double nextStepSize(int batchSize) {
+    double stepSize = Math.pow((double) batchSize / (numTrainingSentences + batchSize), stepSizeExponent);
+    numTrainingSentences += batchSize;
+    return stepSize;
+  }
+
+  /**
+   * Set a label that the metrics of every iteration add to the model name,
+   * such as the direction of one half of a SymmetrizedWordAligner.  Empty
+   * by default.
+   */
+  public void setLabel(String label) {
+    this.label = label;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  /**
+   * The model name of IterationStats: the simple class name, followed by
+   * "/" and the label if there is one.
+   */
+  protected String getModelName() {
+    String name = getClass().getSimpleName();
+    return label.isEmpty() ? name : name + "/" + label;
+  }
+
+  /**
+   * Register a listener for the metrics of every training iteration.
+   */
+  public void addTrainingListener(TrainingListener listener) {
+    getTrainingListeners().add(listener);
+  }
+
+  public List<TrainingListener> getTrainingListeners() {
+    if (listeners == null) {
+      listeners = new ArrayList<TrainingListener>();
+    }
+    return listeners;
+  }
+
+  /**
+   * Gives another aligner this one's threads, iterations, verbosity, pruning,
+   * step size exponent, length bucketing, co-occurrence indexing, E-step
+   * kernel, fork/join, shared counts, label and listeners, for aligners
+   * trained as part of this one.
+   */
+  protected void copySettingsTo(EMWordAligner aligner) {
+    aligner.setNumThreads(numThreads);
+    aligner.setMaxIterations(maxIterations);
+    aligner.setVerbose(verbose);
+    aligner.setPruning(pruneThreshold, pruneTopK, pruneFloor);
+    aligner.setStepSizeExponent(stepSizeExponent);
+    aligner.setLengthBucketing(lengthBucketing);
+    aligner.setCooccurrenceIndexing(cooccurrenceIndexing);
+    if (aligner.kernel != kernel) {
+      aligner.setKernel(kernel);
+    }
+    aligner.setForkJoin(forkJoin);
+    aligner.setSharedCounts(sharedCounts);
+    aligner.setLabel(label);
+    for (TrainingListener listener : getTrainingListeners()) {
+      if (!aligner.getTrainingListeners().contains(listener)) {
+        aligner.addTrainingListener(listener);
+      }
+    }
+  }
+
+  /**
+   * Prints the metrics of an iteration and passes them to the listeners.
+   */
+  protected void iterationFinished(IterationStats stats) {
+    log(stats.toString());
+    for (TrainingListener listener : getTrainingListeners()) {
+      listener.iterationFinished(stats);
+    }
+  }
+
+  /**
+   * Heap currently in use, for IterationStats.
+   */
+  protected static long heapUsed() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * The number of target words in the corpus, for the perplexity reported in
+   * IterationStats.
+   */
+  protected static long countTargetWords(IndexedCorpus corpus) {
+    long numTargetWords = 0;
+    IndexedCorpus.SentenceReader reader = corpus.read();
+    while (reader.next()) {
+      numTargetWords += reader.getTargetSentence().length;
+    }
+    reader.close();
+    return numTargetWords;
+  }
+
+  /**
+   * Whether setPruning() turned pruning on.
+   */
+  protected boolean isPruning() {
+    return pruneThreshold > 0 || pruneTopK > 0;
+  }
+
+  /**
+   * Prunes freshly normalized probabilities as set by setPruning(), if at all.
+   */
+  protected void prune(TranslationTable t) {
+    if (isPruning()) {
+      int dropped = t.prune(pruneThreshold, pruneTopK, pruneFloor);
+      log("Pruned " + dropped + " translation probabilities, " + t.totalSize() + " left");
+    }
+  }
+
+  /**
+   * Looks up t(target|source) for an E-step.  A pair not in t gets unseen if
+   * either word is new, with an index at or above knownSources or
+   * knownTargets, and PRUNED otherwise: t's floor and no counts.
+   */
+  protected static double lookup(TranslationTable t, int source, int target,
+                                 int knownSources, int knownTargets, double unseen) {
+    double prob = t.getCount(source, target, PRUNED);
+    return prob == PRUNED && (source >= knownSources || target >= knownTargets) ? unseen : prob;
+  }
+
+  /**
+   * Writes the trained parameters, after the ModelFile header.
+   */
+  protected abstract void writeModel(DataOutputStream out) throws IOException;
+
+  /**
+   * Reads the parameters written by writeModel().
+   */
+  protected abstract void readModel(ByteBuffer in) throws IOException;
+
+  /**
+   * Model file layout: the number of sentence pairs trained on, then the
+   * parameters written by writeModel().
+   */
+  @Override
+  public void save(File file) {
+    try {
+      DataOutputStream out = ModelFile.create(file, this);
+      out.writeLong(numTrainingSentences);
+      writeModel(out);
+      out.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void load(File file) {
+    try {
+      ByteBuffer in = ModelFile.open(file, this);
+      numTrainingSentences = in.getLong();
+      readModel(in);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Train on a corpus whose words have already been replaced by indices.
+   * This is how corpora too large for a List of SentencePairs, such as a
+   * DiskCorpus, are trained on.
+   *
+   * @param corpus
+   */
+  public abstract void train(IndexedCorpus corpus);
+
+  /**
+   * Updates the model with a mini-batch of new sentence pairs by online
+   * (stepwise) EM: one E-step over the batch, after which every
+   * distribution the batch has counts for moves a step towards the batch's
+   * normalized counts.  The step size decays as the model sees more data
+   * (see setStepSizeExponent()), so a model trained on a large corpus,
+   * saved and loaded again, is only nudged by a small batch.  Words and
+   * sentence lengths new to the model are added to it.
+   *
+   * An untrained model is trained on its first batch by train().
+   *
+   * @param batch
+   */
+  public abstract void update(List<SentencePair> batch);
+
+  /**
+   * Check if the probabilities have converged.
+   * @param maxChange - the largest change of a probability in the last
+   *        M-step, as measured while normalizing
+   * @return true if converged
+   */
+  protected static boolean hasConverged(double maxChange) {
+    return maxChange <= EPSILON;
+  }
+
+  /**
+   * Collects the expected counts of one shard of the corpus.  Shards are
+   * numbered from 0 to getNumThreads() - 1, in corpus order.
+   */
+  protected interface Shard<R> {
+    R run(int shard, int from, int to);
+  }
+
+  /**
+   * Runs shard over the corpus in getNumThreads() contiguous pieces, as cut
+   * by IndexedCorpus.split(), and returns the per-piece results in corpus
+   * order.
+   *
+   * @param executor - the pool to run on, or null to run serially
+   */
+  protected <R> List<R> runShards(ExecutorService executor, IndexedCorpus corpus, final Shard<R> shard) {
+    List<R> results = new ArrayList<R>();
+    if (executor == null) {
+      results.add(shard.run(0, 0, corpus.size()));
+      return results;
+    }
+
+    int[] boundaries = corpus.split(numThreads);
+    List<Future<R>> futures = new ArrayList<Future<R>>();
+    for (int n = 0; n < numThreads; n++) {
+      final int index = n;
+      final int from = boundaries[n];
+      final int to = boundaries[n + 1];
+      futures.add(executor.submit(new Callable<R>() {
+        public R call() {
+          return shard.run(index, from, to);
+        }
+      }));
+    }
+    try {
+      for (Future<R> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    return results;
+  }
+
+  /**
+   * Collects the expected counts of any contiguous piece of the corpus, and
+   * combines the counts of adjacent pieces, for forkJoin().
+   */
+  protected interface Reduction<R> {
+    /**
+     * Collects the counts of sentences [from, to) into new tables.
+     */
+    R run(int from, int to);
+
+    /**
+     * Combines the counts of two adjacent pieces, left first, reusing the
+     * tables of either.
+     */
+    R merge(R left, R right);
+  }
+
+  /**
+   * Runs reduction over the corpus as a fork/join computation: ranges are
+   * halved until they are small enough to run, and the results of the two
+   * halves are merged.
+   *
+   * @param executor - a pool from newExecutor() with setForkJoin(true)
+   */
+  protected <R> R forkJoin(ExecutorService executor, IndexedCorpus corpus, Reduction<R> reduction) {
+    int grain = Math.max(1, corpus.size() / (numThreads * FORK_JOIN_PIECES_PER_THREAD));
+    return ((ForkJoinPool) executor).invoke(new ReductionTask<R>(reduction, 0, corpus.size(), grain));
+  }
+
+  private static class ReductionTask<R> extends RecursiveTask<R> {
+    private static final long serialVersionUID = 3926158172374462190L;
+
+    private final Reduction<R> reduction;
+    private final int from;
+    private final int to;
+    private final int grain;
+
+    ReductionTask(Reduction<R> reduction, int from, int to, int grain) {
+      this.reduction = reduction;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected R compute() {
+      if (to - from <= grain) {
+        return reduction.run(from, to);
+      }
+      int middle = (from + to) >>> 1;
+      ReductionTask<R> left = new ReductionTask<R>(reduction, from, middle, grain);
+      left.fork();
+      R right = new ReductionTask<R>(reduction, middle, to, grain).compute();
+      return reduction.merge(left.join(), right);
+    }
+  }
+
+  /**
+   * Adds the smaller of two count tables to the larger and returns it, for
+   * Reduction.merge().  The result does not depend on the order of the
+   * arguments.
+   */
+  protected static TranslationTable mergeCounts(TranslationTable left, TranslationTable right) {
+    if (left.totalSize() < right.totalSize()) {
+      right.incrementAll(left);
+      return right;
+    }
+    left.incrementAll(right);
+    return left;
+  }
+
+  /**
+   * Returns a pool for runShards(), a ForkJoinPool for forkJoin() if
+   * setForkJoin() is on, or null when training serially.  The caller shuts
+   * it down when training ends.
+   */
+  protected ExecutorService newExecutor() {
+    if (forkJoin) {
+      return new ForkJoinPool(numThreads);
+    }
+    return numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+  }
+}
@@ -0,0 +1,128 @@
+package cs224n.wordaligner;
+
+import java.util.Random;
+
+/**
+ * The arithmetic at the heart of every E-step: given the unnormalized
+ * alignment probabilities of a sentence pair, one row of m + 1 source
+ * positions per target position, turn each row into posteriors and report
+ * its sum.  The aligners gather a sentence's values into an array, run a
+ * kernel over it, and scatter the posteriors into their counts.
+ *
+ * SCALAR sums and divides in order, exactly like the original loops.
+ * UNROLLED sums with four independent accumulators, which breaks the chain
+ * of dependent additions the JIT may not reorder on its own, and multiplies
+ * by the reciprocal of the sum, a loop the JIT vectorizes.  Its results
+ * differ from SCALAR's in the last bits.
+ */
+public enum EStepKernel {
+  SCALAR {
+    public void posteriors(double[] values, int rowLength, int numRows, double[] sums) {
+      for (int i = 0, row = 0; i < numRows; i++, row += rowLength) {
+        double sum = 0.0;
+        for (int j = row; j < row + rowLength; j++) {
+          sum += values[j];
+        }
+        sums[i] = sum;
+        for (int j = row; j < row + rowLength; j++) {
+          values[j] /= sum;
+        }
+      }
+    }
+  },
+
+  UNROLLED {
+    public void posteriors(double[] values, int rowLength, int numRows, double[] sums) {
+      for (int i = 0, row = 0; i < numRows; i++, row += rowLength) {
+        int end = row + rowLength;
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int j = row;
+        for (; j + 3 < end; j += 4) {
+          s0 += values[j];
+          s1 += values[j + 1];
+          s2 += values[j + 2];
+          s3 += values[j + 3];
+        }
+        for (; j < end; j++) {
+          s0 += values[j];
+        }
+        double sum = (s0 + s1) + (s2 + s3);
+        sums[i] = sum;
+        double inverse = 1.0 / sum;
+        for (j = row; j < end; j++) {
+          values[j] *= inverse;
+        }
+      }
+    }
+  };
+
+  // Largest relative difference from SCALAR that verify() accepts.
+  private static final double TOLERANCE = 1e-12;
+
+  /**
+   * Normalizes each row of a row-major matrix to sum to one, in place.
+   *
+   * @param values - numRows rows of rowLength values, at the start of the array
+   * @param rowLength
+   * @param numRows
+   * @param sums - receives the sum of each row, before normalizing
+   */
+  public abstract void posteriors(double[] values, int rowLength, int numRows, double[] sums);
+
+  /**
+   * Parses a kernel name, ignoring case.
+   */
+  public static EStepKernel parse(String name) {
+    return valueOf(name.toUpperCase());
+  }
+
+  /**
+   * Runs this kernel and SCALAR on random matrices of many shapes and
+   * returns the largest relative difference of their results.
+   */
+  public double compareWithScalar(long seed) {
+    Random random = new Random(seed);
+    double maxDifference = 0.0;
+    for (int trial = 0; trial < 200; trial++) {
+      int rowLength = 1 + random.nextInt(40);
+      int numRows = 1 + random.nextInt(40);
+      double[] values = new double[rowLength * numRows];
+      for (int k = 0; k < values.length; k++) {
+        // Probabilities spanning many orders of magnitude, like t and q.
+        values[k] = Math.pow(10, -12 * random.nextDouble());
+      }
+      double[] expected = values.clone();
+      double[] expectedSums = new double[numRows];
+      double[] sums = new double[numRows];
+      SCALAR.posteriors(expected, rowLength, numRows, expectedSums);
+      posteriors(values, rowLength, numRows, sums);
+      for (int k = 0; k < values.length; k++) {
+        maxDifference = Math.max(maxDifference, Math.abs(values[k] - expected[k]) / expected[k]);
+      }
+      for (int i = 0; i < numRows; i++) {
+        maxDifference = Math.max(maxDifference, Math.abs(sums[i] - expectedSums[i]) / expectedSums[i]);
+      }
+    }
+    return maxDifference;
+  }
+
+  /**
+   * Checks that this kernel computes what SCALAR does, up to rounding.
+   *
+   * @throws IllegalStateException if it does not
+   */
+  public void verify() {
+    double difference = compareWithScalar(224L);
+    if (!(difference <= TOLERANCE)) {
+      throw new IllegalStateException(this + " kernel differs from SCALAR by " + difference);
+    }
+  }
+
+  /**
+   * Returns an array of at least length values, reusing buffer if it is
+   * long enough.
+   */
+  static double[] ensureCapacity(double[] buffer, int length) {
+    return buffer != null && buffer.length >= length ? buffer : new double[Math.max(length, 64)];
+  }
+}
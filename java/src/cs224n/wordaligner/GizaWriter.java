@@ -0,0 +1,107 @@
+package cs224n.wordaligner;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes alignments in GIZA++ format, one line per sentence pair, each link
+ * written as "source-target " with links ordered by target position, then
+ * source position.  NULL alignments are not written.
+ *
+ * For more information on this format, see: http://www.statmt.org/moses/?n=FactoredTraining.AlignWords
+ *
+ * Numbers are formatted straight into a reusable byte buffer that is
+ * flushed to a FileChannel, gzip-compressed if the file name ends in ".gz".
+ */
+public class GizaWriter implements Closeable {
+  private static final int BUFFER_SIZE = 1 << 16;
+  // Room for the longest link, "-2147483648--2147483648 ".
+  private static final int MAX_LINK_BYTES = 24;
+
+  private final WritableByteChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+  public GizaWriter(File file) throws IOException {
+    this(file, file.getName().endsWith(".gz"));
+  }
+
+  public GizaWriter(File file, boolean gzip) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    channel = gzip ? Channels.newChannel(new GZIPOutputStream(out, BUFFER_SIZE)) : out.getChannel();
+  }
+
+  /**
+   * Writes the alignment of the next sentence pair.
+   */
+  public void write(SentencePair sentencePair, Alignment alignment) throws IOException {
+    int numTargetTokens = sentencePair.getTargetWords().size();
+    int numSourceTokens = sentencePair.getSourceWords().size();
+    LinkSet links = alignment.getSureLinks();
+    for (int tgtIndex = 0; tgtIndex < numTargetTokens; ++tgtIndex) {
+      int numSources = links.numSources(tgtIndex);
+      for (int k = 0; k < numSources; k++) {
+        int srcIndex = links.getSource(tgtIndex, k);
+        if (srcIndex < 0 || srcIndex >= numSourceTokens) {
+          throw new RuntimeException(String.format("Source index out of bounds: idx: %d src_len: %d", srcIndex, numSourceTokens));
+        }
+        if (buffer.remaining() < MAX_LINK_BYTES) {
+          flush();
+        }
+        putInt(srcIndex);
+        buffer.put((byte) '-');
+        putInt(tgtIndex);
+        buffer.put((byte) ' ');
+      }
+    }
+    if (!buffer.hasRemaining()) {
+      flush();
+    }
+    buffer.put((byte) '\n');
+  }
+
+  // Writes the decimal digits of n.
+  private void putInt(int n) {
+    if (n < 0) {
+      buffer.put((byte) '-');
+      if (n == Integer.MIN_VALUE) {
+        buffer.put((byte) '2');
+        n = -147483648;
+      }
+      n = -n;
+    }
+    int start = buffer.position();
+    do {
+      buffer.put((byte) ('0' + n % 10));
+      n /= 10;
+    } while (n > 0);
+    // The digits went in backwards.
+    byte[] bytes = buffer.array();
+    for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+      byte b = bytes[i];
+      bytes[i] = bytes[j];
+      bytes[j] = b;
+    }
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Flushes the buffer and closes the file.
+   */
+  public void close() throws IOException {
+    flush();
+    channel.close();
+  }
+}
@@ -0,0 +1,431 @@
+package cs224n.wordaligner;
+
+import cs224n.util.Indexer;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Training sentences with every token replaced by its vocabulary index.
+ *
+ * The source vocabulary always maps WordAligner.NULL_WORD to NULL_INDEX, so
+ * the aligners can treat the NULL word like any other source token.
+ *
+ * Sentences are read in order through a SentenceReader, which lets a corpus
+ * live on disk (see DiskCorpus) and be streamed once per EM iteration.
+ */
+public abstract class IndexedCorpus {
+  public static final int NULL_INDEX = 0;
+
+  private final Indexer<String> sourceIndexer;
+  private final Indexer<String> targetIndexer;
+
+  protected IndexedCorpus(Indexer<String> sourceIndexer, Indexer<String> targetIndexer) {
+    this.sourceIndexer = sourceIndexer;
+    this.targetIndexer = targetIndexer;
+  }
+
+  /**
+   * Reads sentence pairs in corpus order.  Call next() before reading the
+   * first pair, and close() when done.
+   */
+  public interface SentenceReader extends Closeable {
+    boolean next();
+
+    int[] getSourceSentence();
+
+    int[] getTargetSentence();
+
+    void close();
+  }
+
+  /**
+   * The number of sentence pairs.
+   */
+  public abstract int size();
+
+  /**
+   * Returns a reader over sentence pairs [from, to).  Readers are
+   * independent, so several threads may read the corpus at once.
+   */
+  public abstract SentenceReader read(int from, int to);
+
+  /**
+   * Returns a reader over the whole corpus.
+   */
+  public SentenceReader read() {
+    return read(0, size());
+  }
+
+  /**
+   * Splits the sentence pairs into numShards contiguous ranges for parallel
+   * E-steps, equally many sentence pairs in each.
+   *
+   * @return numShards + 1 boundaries: shard n is [boundaries[n], boundaries[n + 1])
+   */
+  public int[] split(int numShards) {
+    int[] boundaries = new int[numShards + 1];
+    for (int n = 0; n <= numShards; n++) {
+      boundaries[n] = (int) ((long) size() * n / numShards);
+    }
+    return boundaries;
+  }
+
+  /**
+   * Returns the corpus in memory with its sentence pairs grouped into
+   * buckets of equal (source length, target length), ordered by source then
+   * target length, so that EM works through one bucket at a time: the rows
+   * of q and the work arrays of consecutive sentences are the same.  Within
+   * a bucket sentence pairs keep their order.  The sorted corpus splits into
+   * shards of whole buckets with about equal numbers of alignment cells.
+   */
+  public IndexedCorpus byLength() {
+    int size = size();
+    int[][] sourceSentences = new int[size][];
+    int[][] targetSentences = new int[size][];
+    SentenceReader reader = read();
+    for (int k = 0; reader.next(); k++) {
+      sourceSentences[k] = reader.getSourceSentence();
+      targetSentences[k] = reader.getTargetSentence();
+    }
+    reader.close();
+
+    int[] order = new int[size];
+    for (int k = 0; k < size; k++) {
+      order[k] = k;
+    }
+    order = sortByLength(order, targetSentences);
+    order = sortByLength(order, sourceSentences);
+
+    int[][] sortedSource = new int[size][];
+    int[][] sortedTarget = new int[size][];
+    List<Integer> bucketStarts = new ArrayList<Integer>();
+    for (int k = 0; k < size; k++) {
+      sortedSource[k] = sourceSentences[order[k]];
+      sortedTarget[k] = targetSentences[order[k]];
+      if (k == 0 || sortedSource[k].length != sortedSource[k - 1].length
+          || sortedTarget[k].length != sortedTarget[k - 1].length) {
+        bucketStarts.add(k);
+      }
+    }
+    bucketStarts.add(size);
+    int[] starts = new int[bucketStarts.size()];
+    for (int b = 0; b < starts.length; b++) {
+      starts[b] = bucketStarts.get(b);
+    }
+    return new InMemoryCorpus(sourceIndexer, targetIndexer, sortedSource, sortedTarget, starts);
+  }
+
+  // Stable counting sort of order by the lengths of the sentences it points to.
+  private static int[] sortByLength(int[] order, int[][] sentences) {
+    int maxLength = 0;
+    for (int[] sentence : sentences) {
+      maxLength = Math.max(maxLength, sentence.length);
+    }
+    int[] next = new int[maxLength + 2];
+    for (int[] sentence : sentences) {
+      next[sentence.length + 1]++;
+    }
+    for (int length = 0; length <= maxLength; length++) {
+      next[length + 1] += next[length];
+    }
+    int[] sorted = new int[order.length];
+    for (int k : order) {
+      sorted[next[sentences[k].length]++] = k;
+    }
+    return sorted;
+  }
+
+  /**
+   * Decodes the corpus back into sentence pairs, in corpus order.  Sentence
+   * IDs are positions in the corpus.  Each iteration reads the corpus again.
+   */
+  public Iterable<SentencePair> sentencePairs() {
+    return new Iterable<SentencePair>() {
+      public Iterator<SentencePair> iterator() {
+        final SentenceReader reader = read();
+        return new Iterator<SentencePair>() {
+          private int k = 0;
+
+          public boolean hasNext() {
+            return k < size();
+          }
+
+          public SentencePair next() {
+            if (!reader.next()) {
+              throw new NoSuchElementException();
+            }
+            if (++k == size()) {
+              reader.close();
+            }
+            return new SentencePair(k - 1, null, decode(targetIndexer, reader.getTargetSentence()),
+                decode(sourceIndexer, reader.getSourceSentence()));
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  private static List<String> decode(Indexer<String> indexer, int[] indices) {
+    List<String> words = new ArrayList<String>(indices.length);
+    for (int index : indices) {
+      words.add(indexer.get(index));
+    }
+    return words;
+  }
+
+  public Indexer<String> getSourceIndexer() {
+    return sourceIndexer;
+  }
+
+  public Indexer<String> getTargetIndexer() {
+    return targetIndexer;
+  }
+
+  /**
+   * Returns this corpus with source and target swapped, for training the
+   * reverse direction.  The swapped vocabularies are copies (the new source
+   * vocabulary needs the NULL word at NULL_INDEX).  A corpus held in memory
+   * is re-indexed once into a new one; other corpora, such as a DiskCorpus,
+   * are re-indexed sentence by sentence as they are read, so they are not
+   * copied.
+   */
+  public IndexedCorpus reverse() {
+    return new ReversedCorpus(this);
+  }
+
+  private static Indexer<String> withNull(Indexer<String> targetIndexer) {
+    Indexer<String> indexer = newSourceIndexer();
+    for (String word : targetIndexer.getObjects()) {
+      indexer.addAndGetIndex(word);
+    }
+    return indexer;
+  }
+
+  private static Indexer<String> withoutNull(Indexer<String> sourceIndexer) {
+    Indexer<String> indexer = new Indexer<String>();
+    List<String> words = sourceIndexer.getObjects();
+    for (String word : words.subList(NULL_INDEX + 1, words.size())) {
+      indexer.addAndGetIndex(word);
+    }
+    return indexer;
+  }
+
+  // Target indices become source indices one up, after the NULL word, and
+  // source indices target indices one down.
+  private static int[] shift(int[] indices, int offset) {
+    int[] shifted = new int[indices.length];
+    for (int i = 0; i < indices.length; i++) {
+      shifted[i] = indices[i] + offset;
+    }
+    return shifted;
+  }
+
+  /**
+   * Returns an empty source vocabulary holding only the NULL word.
+   */
+  public static Indexer<String> newSourceIndexer() {
+    Indexer<String> sourceIndexer = new Indexer<String>();
+    sourceIndexer.addAndGetIndex(WordAligner.NULL_WORD);
+    return sourceIndexer;
+  }
+
+  /**
+   * Builds the source and target vocabularies and encodes every sentence pair
+   * in memory.
+   *
+   * @param sentencePairs
+   * @return the encoded corpus
+   */
+  public static IndexedCorpus index(List<SentencePair> sentencePairs) {
+    return index(sentencePairs, newSourceIndexer(), new Indexer<String>());
+  }
+
+  /**
+   * Encodes every sentence pair in memory with existing vocabularies, adding
+   * the words they do not have yet.
+   *
+   * @param sentencePairs
+   * @param sourceIndexer - a vocabulary from newSourceIndexer()
+   * @param targetIndexer
+   * @return the encoded corpus
+   */
+  public static IndexedCorpus index(List<SentencePair> sentencePairs, Indexer<String> sourceIndexer,
+                                    Indexer<String> targetIndexer) {
+    int[][] sourceSentences = new int[sentencePairs.size()][];
+    int[][] targetSentences = new int[sentencePairs.size()][];
+    int k = 0;
+    for (SentencePair pair : sentencePairs) {
+      sourceSentences[k] = index(sourceIndexer, pair.getSourceWords());
+      targetSentences[k] = index(targetIndexer, pair.getTargetWords());
+      k++;
+    }
+    return new InMemoryCorpus(sourceIndexer, targetIndexer, sourceSentences, targetSentences);
+  }
+
+  /**
+   * Looks up the indices of words, adding unknown words to the vocabulary.
+   */
+  public static int[] index(Indexer<String> indexer, List<String> words) {
+    int[] indices = new int[words.size()];
+    int i = 0;
+    for (String word : words) {
+      indices[i++] = indexer.addAndGetIndex(word);
+    }
+    return indices;
+  }
+
+  /**
+   * Looks up the indices of words without growing the vocabulary.  Unknown
+   * words get index -1.
+   */
+  public static int[] lookup(Indexer<String> indexer, List<String> words) {
+    int[] indices = new int[words.size()];
+    int i = 0;
+    for (String word : words) {
+      indices[i++] = indexer.indexOf(word);
+    }
+    return indices;
+  }
+
+  // Corpus held in memory as arrays of indices.
+  private static class InMemoryCorpus extends IndexedCorpus {
+    private final int[][] sourceSentences;
+    private final int[][] targetSentences;
+    // Where each length bucket starts, then size(); null unless sorted by byLength().
+    private final int[] bucketStarts;
+
+    InMemoryCorpus(Indexer<String> sourceIndexer, Indexer<String> targetIndexer,
+                   int[][] sourceSentences, int[][] targetSentences) {
+      this(sourceIndexer, targetIndexer, sourceSentences, targetSentences, null);
+    }
+
+    InMemoryCorpus(Indexer<String> sourceIndexer, Indexer<String> targetIndexer,
+                   int[][] sourceSentences, int[][] targetSentences, int[] bucketStarts) {
+      super(sourceIndexer, targetIndexer);
+      this.sourceSentences = sourceSentences;
+      this.targetSentences = targetSentences;
+      this.bucketStarts = bucketStarts;
+    }
+
+    public int size() {
+      return sourceSentences.length;
+    }
+
+    public IndexedCorpus byLength() {
+      return bucketStarts != null ? this : super.byLength();
+    }
+
+    // Swapping the lengths keeps each length bucket contiguous, which is all
+    // byLength() and the shard cuts need; the buckets and the pairs within
+    // them stay in the order of the original lengths.
+    public IndexedCorpus reverse() {
+      int[][] reversedSource = new int[targetSentences.length][];
+      int[][] reversedTarget = new int[sourceSentences.length][];
+      for (int k = 0; k < reversedSource.length; k++) {
+        reversedSource[k] = shift(targetSentences[k], 1);
+        reversedTarget[k] = shift(sourceSentences[k], -1);
+      }
+      return new InMemoryCorpus(withNull(getTargetIndexer()), withoutNull(getSourceIndexer()),
+          reversedSource, reversedTarget, bucketStarts);
+    }
+
+    // Cuts at the bucket starts closest to equal shares of the alignment
+    // cells, (m + 1) * n for a sentence pair.
+    public int[] split(int numShards) {
+      if (bucketStarts == null) {
+        return super.split(numShards);
+      }
+      long[] cells = new long[bucketStarts.length];
+      for (int b = 0; b + 1 < bucketStarts.length; b++) {
+        int k = bucketStarts[b];
+        long cellsPerSentence = (long) (sourceSentences[k].length + 1) * targetSentences[k].length;
+        cells[b + 1] = cells[b] + cellsPerSentence * (bucketStarts[b + 1] - k);
+      }
+      int[] boundaries = new int[numShards + 1];
+      int b = 0;
+      for (int n = 1; n < numShards; n++) {
+        long goal = cells[cells.length - 1] * n / numShards;
+        while (b + 1 < cells.length && Math.abs(cells[b + 1] - goal) <= Math.abs(cells[b] - goal)) {
+          b++;
+        }
+        boundaries[n] = bucketStarts[b];
+      }
+      boundaries[numShards] = size();
+      return boundaries;
+    }
+
+    public SentenceReader read(final int from, final int to) {
+      return new SentenceReader() {
+        private int k = from - 1;
+
+        public boolean next() {
+          return ++k < to;
+        }
+
+        public int[] getSourceSentence() {
+          return sourceSentences[k];
+        }
+
+        public int[] getTargetSentence() {
+          return targetSentences[k];
+        }
+
+        public void close() {
+        }
+      };
+    }
+  }
+
+  // Swaps source and target of a corpus not held in memory, re-indexing each
+  // sentence pair once as it is read.  Source index s becomes target index
+  // s - 1, and target index t becomes source index t + 1.
+  private static class ReversedCorpus extends IndexedCorpus {
+    private final IndexedCorpus corpus;
+
+    ReversedCorpus(IndexedCorpus corpus) {
+      super(withNull(corpus.getTargetIndexer()), withoutNull(corpus.getSourceIndexer()));
+      this.corpus = corpus;
+    }
+
+    public int size() {
+      return corpus.size();
+    }
+
+    public SentenceReader read(int from, int to) {
+      final SentenceReader reader = corpus.read(from, to);
+      return new SentenceReader() {
+        private int[] sourceSentence;
+        private int[] targetSentence;
+
+        public boolean next() {
+          if (!reader.next()) {
+            return false;
+          }
+          sourceSentence = shift(reader.getTargetSentence(), 1);
+          targetSentence = shift(reader.getSourceSentence(), -1);
+          return true;
+        }
+
+        public int[] getSourceSentence() {
+          return sourceSentence;
+        }
+
+        public int[] getTargetSentence() {
+          return targetSentence;
+        }
+
+        public void close() {
+          reader.close();
+        }
+      };
+    }
+  }
+}
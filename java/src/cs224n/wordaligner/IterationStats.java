@@ -0,0 +1,105 @@
+package cs224n.wordaligner;
+
+/**
+ * Metrics of one EM iteration: where the time and memory went, and how far
+ * the model moved.  The log-likelihood is that of the corpus under the
+ * probabilities the iteration started from.
+ */
+public class IterationStats {
+  private final String model;
+  private final int iteration;
+  private final long wallTimeMillis;
+  private final int numSentences;
+  private final long numTargetWords;
+  private final int translationTableSize;
+  private final int distortionTableSize;
+  private final long heapUsedBytes;
+  private final double logLikelihood;
+  private final double maxChange;
+
+  public IterationStats(String model, int iteration, long wallTimeMillis, int numSentences,
+                        long numTargetWords, int translationTableSize, int distortionTableSize,
+                        long heapUsedBytes, double logLikelihood, double maxChange) {
+    this.model = model;
+    this.iteration = iteration;
+    this.wallTimeMillis = wallTimeMillis;
+    this.numSentences = numSentences;
+    this.numTargetWords = numTargetWords;
+    this.translationTableSize = translationTableSize;
+    this.distortionTableSize = distortionTableSize;
+    this.heapUsedBytes = heapUsedBytes;
+    this.logLikelihood = logLikelihood;
+    this.maxChange = maxChange;
+  }
+
+  /**
+   * The name of the aligner being trained, as EMWordAligner.getModelName():
+   * its simple class name, followed by "/" and its label if it has one, such
+   * as the direction of a symmetrized aligner.
+   */
+  public String getModel() {
+    return model;
+  }
+
+  public int getIteration() {
+    return iteration;
+  }
+
+  public long getWallTimeMillis() {
+    return wallTimeMillis;
+  }
+
+  public int getNumSentences() {
+    return numSentences;
+  }
+
+  public double getSentencesPerSecond() {
+    return numSentences * 1000.0 / Math.max(1, wallTimeMillis);
+  }
+
+  /**
+   * The number of entries of t after the iteration (and any pruning).
+   */
+  public int getTranslationTableSize() {
+    return translationTableSize;
+  }
+
+  /**
+   * The number of values of q, or 0 for models without distortion.
+   */
+  public int getDistortionTableSize() {
+    return distortionTableSize;
+  }
+
+  /**
+   * Heap in use at the end of the iteration, garbage included.
+   */
+  public long getHeapUsedBytes() {
+    return heapUsedBytes;
+  }
+
+  public double getLogLikelihood() {
+    return logLikelihood;
+  }
+
+  /**
+   * Per-word perplexity of the target side: exp(-log-likelihood / target words).
+   */
+  public double getPerplexity() {
+    return Math.exp(-logLikelihood / numTargetWords);
+  }
+
+  /**
+   * The largest change of a probability in the M-step.
+   */
+  public double getMaxChange() {
+    return maxChange;
+  }
+
+  public String toString() {
+    return String.format("%s iteration %d: %d ms, %.0f sentences/s, |t| %d, |q| %d, heap %d MB, " +
+        "log-likelihood %.4f, perplexity %.4f, max change %.6f",
+        model, iteration, wallTimeMillis, getSentencesPerSecond(), translationTableSize,
+        distortionTableSize, heapUsedBytes >> 20, logLikelihood, getPerplexity(), maxChange);
+  }
+}
@@ -0,0 +1,257 @@
+package cs224n.wordaligner;
+
+import java.util.Arrays;
+
+/**
+ * The (target position, source position) links of one sentence pair.  Each
+ * link is packed into a long and kept in an open-addressing hash table, so
+ * membership tests create no objects.  The source positions linked to each
+ * target position are also kept in a sorted list, so the links of one
+ * target are found without scanning the whole set.
+ *
+ * Positions may be negative (a NULL link in a gold file), but only links
+ * with a non-negative target position have an adjacency list; the sources of
+ * a negative target are found by scanning.
+ */
+public class LinkSet {
+  // Marks an empty slot. Never a real link since no target is Integer.MIN_VALUE.
+  private static final long EMPTY = Long.MIN_VALUE;
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final double MAX_LOAD = 0.6;
+
+  private long[] table;
+  private int size;
+  // Target position => sorted source positions, in the first numSources[target] slots.
+  private int[][] sources;
+  private int[] numSources;
+
+  public LinkSet() {
+    table = new long[DEFAULT_CAPACITY];
+    Arrays.fill(table, EMPTY);
+    sources = new int[0][];
+    numSources = new int[0];
+  }
+
+  public LinkSet(LinkSet other) {
+    table = other.table.clone();
+    size = other.size;
+    sources = new int[other.sources.length][];
+    for (int i = 0; i < sources.length; i++) {
+      sources[i] = other.sources[i] == null ? null : other.sources[i].clone();
+    }
+    numSources = other.numSources.clone();
+  }
+
+  // -----------------------------------------------------------------------
+
+  private static long pack(int target, int source) {
+    return ((long) target << 32) | (source & 0xffffffffL);
+  }
+
+  private static int mix(long link) {
+    link *= 0x9E3779B97F4A7C15L;
+    return (int) (link ^ (link >>> 32));
+  }
+
+  // Returns the slot holding link, or the empty slot where it belongs.
+  private int slot(long link) {
+    int mask = table.length - 1;
+    int slot = mix(link) & mask;
+    while (table[slot] != EMPTY && table[slot] != link) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldTable = table;
+    table = new long[capacity];
+    Arrays.fill(table, EMPTY);
+    for (long link : oldTable) {
+      if (link != EMPTY) {
+        table[slot(link)] = link;
+      }
+    }
+  }
+
+  // Empties a slot, moving later links of its probe run back so that every
+  // link stays reachable from its home slot.
+  private void delete(int slot) {
+    int mask = table.length - 1;
+    int hole = slot;
+    for (int j = (slot + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+      int home = mix(table[j]) & mask;
+      boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+      if (movable) {
+        table[hole] = table[j];
+        hole = j;
+      }
+    }
+    table[hole] = EMPTY;
+  }
+
+  // -----------------------------------------------------------------------
+
+  public boolean contains(int target, int source) {
+    return table[slot(pack(target, source))] != EMPTY;
+  }
+
+  /**
+   * Adds a link.
+   *
+   * @return true if the link was not already in the set
+   */
+  public boolean add(int target, int source) {
+    long link = pack(target, source);
+    int slot = slot(link);
+    if (table[slot] != EMPTY) {
+      return false;
+    }
+    if (size + 1 > table.length * MAX_LOAD) {
+      rehash(table.length << 1);
+      slot = slot(link);
+    }
+    table[slot] = link;
+    size++;
+    if (target >= 0) {
+      addSource(target, source);
+    }
+    return true;
+  }
+
+  private void addSource(int target, int source) {
+    if (target >= sources.length) {
+      int length = Math.max(target + 1, sources.length << 1);
+      sources = Arrays.copyOf(sources, length);
+      numSources = Arrays.copyOf(numSources, length);
+    }
+    int[] list = sources[target];
+    int n = numSources[target];
+    if (list == null) {
+      list = sources[target] = new int[2];
+    } else if (n == list.length) {
+      list = sources[target] = Arrays.copyOf(list, n << 1);
+    }
+    // Insertion sort; a target has few links.
+    int k = n;
+    while (k > 0 && list[k - 1] > source) {
+      list[k] = list[k - 1];
+      k--;
+    }
+    list[k] = source;
+    numSources[target] = n + 1;
+  }
+
+  /**
+   * Removes a link.
+   *
+   * @return true if the link was in the set
+   */
+  public boolean remove(int target, int source) {
+    int slot = slot(pack(target, source));
+    if (table[slot] == EMPTY) {
+      return false;
+    }
+    delete(slot);
+    size--;
+    if (target >= 0) {
+      int[] list = sources[target];
+      int n = numSources[target];
+      int k = 0;
+      while (list[k] != source) {
+        k++;
+      }
+      System.arraycopy(list, k + 1, list, k, n - k - 1);
+      numSources[target] = n - 1;
+    }
+    return true;
+  }
+
+  /**
+   * The number of links.
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * One more than the largest target position that may have links, for
+   * looping over numSources(target).
+   */
+  public int numTargets() {
+    return sources.length;
+  }
+
+  /**
+   * The number of source positions linked to a target position.
+   */
+  public int numSources(int target) {
+    if (target < 0) {
+      int n = 0;
+      Cursor cursor = cursor();
+      while (cursor.next()) {
+        if (cursor.target() == target) {
+          n++;
+        }
+      }
+      return n;
+    }
+    return target < numSources.length ? numSources[target] : 0;
+  }
+
+  /**
+   * The k-th smallest source position linked to a target position, for k
+   * from 0 to numSources(target) - 1.
+   */
+  public int getSource(int target, int k) {
+    if (target < 0) {
+      int[] list = new int[numSources(target)];
+      int n = 0;
+      Cursor cursor = cursor();
+      while (cursor.next()) {
+        if (cursor.target() == target) {
+          list[n++] = cursor.source();
+        }
+      }
+      Arrays.sort(list);
+      return list[k];
+    }
+    if (k >= numSources(target)) {
+      throw new IndexOutOfBoundsException("Target " + target + " has " + numSources(target) + " links: " + k);
+    }
+    return sources[target][k];
+  }
+
+  /**
+   * Returns a cursor over the links, in no particular order.
+   */
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * Steps through the links.  Call next() before reading the first one.
+   */
+  public class Cursor {
+    private int slot = -1;
+
+    public boolean next() {
+      do {
+        slot++;
+      } while (slot < table.length && table[slot] == EMPTY);
+      return slot < table.length;
+    }
+
+    public int target() {
+      return (int) (table[slot] >> 32);
+    }
+
+    public int source() {
+      return (int) table[slot];
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package cs224n.wordaligner;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * A TrainingListener that writes the metrics of every iteration to a file,
+ * one line per iteration: CSV with a header line, or one JSON object per line
+ * if the file name ends in ".json".  Lines are flushed as they are written so
+ * a running job can be watched.
+ */
+public class MetricsWriter implements TrainingListener, Closeable {
+  private static final String[] COLUMNS = {
+    "model", "iteration", "wallTimeMillis", "sentencesPerSecond", "translationTableSize",
+    "distortionTableSize", "heapUsedBytes", "logLikelihood", "perplexity", "maxChange"
+  };
+
+  private final PrintWriter out;
+  private final boolean json;
+
+  public MetricsWriter(File file) throws IOException {
+    out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+    json = file.getName().endsWith(".json");
+    if (!json) {
+      StringBuilder header = new StringBuilder();
+      for (String column : COLUMNS) {
+        header.append(header.length() == 0 ? "" : ",").append(column);
+      }
+      out.println(header);
+      out.flush();
+    }
+  }
+
+  public synchronized void iterationFinished(IterationStats stats) {
+    Object[] values = {
+      stats.getModel(), stats.getIteration(), stats.getWallTimeMillis(), stats.getSentencesPerSecond(),
+      stats.getTranslationTableSize(), stats.getDistortionTableSize(), stats.getHeapUsedBytes(),
+      stats.getLogLikelihood(), stats.getPerplexity(), stats.getMaxChange()
+    };
+    StringBuilder line = new StringBuilder(json ? "{" : "");
+    for (int i = 0; i < COLUMNS.length; i++) {
+      if (i > 0) {
+        line.append(',');
+      }
+      if (json) {
+        line.append('"').append(COLUMNS[i]).append("\":");
+      }
+      line.append(format(values[i]));
+    }
+    if (json) {
+      line.append('}');
+    }
+    out.println(line);
+    out.flush();
+  }
+
+  private String format(Object value) {
+    if (value instanceof String) {
+      // Class names need no escaping.
+      return json ? "\"" + value + "\"" : (String) value;
+    }
+    if (value instanceof Double) {
+      double d = (Double) value;
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        // JSON has no literal for these.
+        return json ? "null" : Double.toString(d);
+      }
+      return Double.toString(d);
+    }
+    return value.toString();
+  }
+
+  public synchronized void close() {
+    out.close();
+  }
+}
@@ -1,53 +1,100 @@
 package cs224n.wordaligner;
 
-import cs224n.util.Counter;
+import cs224n.util.BinaryIO;
 import cs224n.util.CounterMap;
-import cs224n.util.Counters;
+import cs224n.util.Indexer;
+import cs224n.util.IntCountAccumulator;
+import cs224n.util.StripedIntCounterMap;
 
-import java.util.HashSet;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Word aligner using IBM Model 1.
  */
-public class Model1WordAligner implements WordAligner {
-  // NULL in source language.
-  // TODO: extract to abstract class
-  private static final double EPSILON = 1e-4;
-  // TODO: determine a proper value
-  private static final int T = 50;
-  private CounterMap<String, String> t;
+public class Model1WordAligner extends EMWordAligner {
+  // Vocabularies mapping words to the indices used by t.
+  private Indexer<String> sourceIndexer;
+  private Indexer<String> targetIndexer;
+  // <Source index, Target index> => t(target|source).
+  private TranslationTable t;
 
   /**
    * Get T(f|e) which model 2 will use it to do initialization.
    * @return t
    */
   public CounterMap<String, String> getT() {
+    CounterMap<String, String> counterMap = new CounterMap<>();
+    TranslationTable.Cursor cursor = t.cursor();
+    while (cursor.next()) {
+      counterMap.setCount(sourceIndexer.get(cursor.key()),
+          targetIndexer.get(cursor.value()), cursor.count());
+    }
+    return counterMap;
+  }
+
+  /**
+   * Get t(target|source) for a pair of words.
+   * @return the probability, or zero if either word was not seen in training
+   */
+  public double getProbability(String source, String target) {
+    return t.getCount(sourceIndexer.indexOf(source), targetIndexer.indexOf(target));
+  }
+
+  public TranslationTable getTranslationTable() {
     return t;
   }
 
+  public Indexer<String> getSourceIndexer() {
+    return sourceIndexer;
+  }
+
+  public Indexer<String> getTargetIndexer() {
+    return targetIndexer;
+  }
+
+  /**
+   * Model file layout: source and target vocabularies, then t.
+   */
+  @Override
+  protected void writeModel(DataOutputStream out) throws IOException {
+    BinaryIO.writeIndexer(out, sourceIndexer);
+    BinaryIO.writeIndexer(out, targetIndexer);
+    t.writeTo(out);
+  }
+
+  @Override
+  protected void readModel(ByteBuffer in) throws IOException {
+    sourceIndexer = BinaryIO.readIndexer(in);
+    targetIndexer = BinaryIO.readIndexer(in);
+    t = new TranslationTable(0);
+    t.readFrom(in);
+  }
+
   @Override
   public Alignment align(SentencePair sentencePair) {
     Alignment alignment = new Alignment();
 
-    List<String> sourceWords = sentencePair.getSourceWords();
-    List<String> targetWords = sentencePair.getTargetWords();
-    int numSourceWords = sourceWords.size();
-    int numTargetWords = targetWords.size();
+    int[] sourceWords = IndexedCorpus.lookup(sourceIndexer, sentencePair.getSourceWords());
+    int[] targetWords = IndexedCorpus.lookup(targetIndexer, sentencePair.getTargetWords());
+    int numSourceWords = sourceWords.length;
+    int numTargetWords = targetWords.length;
 
     // Find best alignment for each source word
     // In Model 1, q(j|i,l,m) is a constant, so only need to consider t(e|f).
     for (int tgtIndex = 0; tgtIndex < numTargetWords; tgtIndex++) {
-      String target = targetWords.get(tgtIndex);
+      int target = targetWords[tgtIndex];
       // Match with NULL_WORD.
-      double bestScore = t.getCount(NULL_WORD, target);
+      double bestScore = t.getCount(IndexedCorpus.NULL_INDEX, target);
       int bestIndex = numSourceWords;
 
       // Match with source text.
       for (int srcIndex = 0; srcIndex < numSourceWords; srcIndex++) {
-        String source = sourceWords.get(srcIndex);
-        double score = t.getCount(source, target);
+        double score = t.getCount(sourceWords[srcIndex], target);
 
         if (score > bestScore) {
           bestScore = score;
@@ -63,100 +110,377 @@ public class Model1WordAligner implements WordAligner {
 
   @Override
   public void train(List<SentencePair> trainingData) {
-    CounterMap<String, String> t = null;
+    train(IndexedCorpus.index(trainingData));
+  }
+
+  /**
+   * Trains with a CooccurrenceIndex if setCooccurrenceIndexing() asks for it
+   * and pruning is off, with hash tables otherwise.
+   */
+  @Override
+  public void train(IndexedCorpus trainingCorpus) {
+    IndexedCorpus corpus = schedule(trainingCorpus);
+    if (isCooccurrenceIndexing() && !isPruning()) {
+      this.t = trainIndexed(corpus);
+    } else {
+      this.t = trainTables(corpus);
+    }
+    this.sourceIndexer = corpus.getSourceIndexer();
+    this.targetIndexer = corpus.getTargetIndexer();
+    setNumTrainingSentences(corpus.size());
+  }
+
+  // EM over translation tables.
+  private TranslationTable trainTables(final IndexedCorpus corpus) {
+    TranslationTable t = null;
     // Use in the first iteration to save space
-    double initProb = getInitialProbability(trainingData);
-
-    // Run EM algorithm
-    for (int i = 0; i < T; i++) {
-      System.out.println("Iteration " + i);
-
-      // Set initial counts to 0 (implicitly)
-      CounterMap<String, String> sourceTargetCounts = new CounterMap<>();
-
-      // E-step: update counts based on probabilities
-      // for k = 1..n
-      // Note: Not using index explicitly as List may not have random access.
-      for (SentencePair pair : trainingData) {
-        // source is "French"
-        List<String> sourceWords = pair.getSourceWords();
-        // target is "English"
-        List<String> targetWords = pair.getTargetWords();
-
-        // for i = 1..m_k
-        for (String target : targetWords) {
-          // Cache $$sum_{j=0}^{l_k} t(e_i^{(k)}|f_j^{(k)})$$
-          double sumT = 0.0;
-          for (String source : sourceWords) {
-            sumT += i == 0 ? initProb : t.getCount(source, target);
+    final double initProb = 1.0 / corpus.getTargetIndexer().size();
+    // Count tables of each shard, cleared and reused every iteration.
+    final TranslationTable[] buffers = new TranslationTable[getNumThreads()];
+    final long numTargetWords = countTargetWords(corpus);
+    // Log-likelihood of each shard under the current probabilities.
+    final double[] logLikelihoods = new double[getNumThreads()];
+    // Count table all shards add to, if setSharedCounts() is on.
+    final StripedIntCounterMap sharedCounts = newSharedCounts(0);
+
+    ExecutorService executor = newExecutor();
+    try {
+      // Run EM algorithm
+      for (int i = 0; i < getMaxIterations(); i++) {
+        log("Iteration " + i);
+        long start = System.currentTimeMillis();
+
+        // E-step: update counts based on probabilities, one table per shard
+        // or, with fork/join, per piece
+        final TranslationTable tCurrent = t;
+        TranslationTable sourceTargetCounts;
+        double logLikelihood;
+        if (isForkJoin()) {
+          Counts counts = forkJoin(executor, corpus, new Reduction<Counts>() {
+            public Counts run(int from, int to) {
+              Counts counts = new Counts();
+              counts.sourceTargetCounts = new TranslationTable();
+              counts.logLikelihood = expectedCounts(corpus, from, to, tCurrent, initProb, 0, 0, PRUNED,
+                  getKernel(), counts.sourceTargetCounts);
+              return counts;
+            }
+
+            public Counts merge(Counts left, Counts right) {
+              left.sourceTargetCounts = mergeCounts(left.sourceTargetCounts, right.sourceTargetCounts);
+              left.logLikelihood += right.logLikelihood;
+              return left;
+            }
+          });
+          sourceTargetCounts = counts.sourceTargetCounts;
+          logLikelihood = counts.logLikelihood;
+        } else if (sharedCounts != null) {
+          sharedCounts.clear();
+          runShards(executor, corpus, new Shard<Void>() {
+            public Void run(int shard, int from, int to) {
+              logLikelihoods[shard] = expectedCounts(corpus, from, to, tCurrent, initProb, 0, 0, PRUNED,
+                  getKernel(), sharedCounts);
+              return null;
+            }
+          });
+          sourceTargetCounts = buffers[0] != null ? buffers[0] : new TranslationTable(sharedCounts.totalSize());
+          sourceTargetCounts.clear();
+          sharedCounts.addTo(sourceTargetCounts);
+          logLikelihood = 0.0;
+          for (double shardLogLikelihood : logLikelihoods) {
+            logLikelihood += shardLogLikelihood;
+          }
+        } else {
+          List<TranslationTable> shards = runShards(executor, corpus, new Shard<TranslationTable>() {
+            public TranslationTable run(int shard, int from, int to) {
+              TranslationTable counts = buffers[shard];
+              if (counts == null) {
+                counts = new TranslationTable(tCurrent == null ? 0 : tCurrent.totalSize());
+              } else {
+                counts.clear();
+              }
+              logLikelihoods[shard] = expectedCounts(corpus, from, to, tCurrent, initProb, 0, 0, PRUNED,
+                  getKernel(), counts);
+              return counts;
+            }
+          });
+          sourceTargetCounts = shards.get(0);
+          logLikelihood = logLikelihoods[0];
+          for (int n = 1; n < shards.size(); n++) {
+            sourceTargetCounts.incrementAll(shards.get(n));
+            logLikelihood += logLikelihoods[n];
+            buffers[n] = shards.get(n);
           }
-          sumT += i == 0 ? initProb : t.getCount(NULL_WORD, target);
+        }
 
-          // for j = 1..l_k
-          for (String source : sourceWords) {
-            // Increment probability count
-            double deltaKIJ = (i == 0 ? initProb : t.getCount(source, target)) / sumT;
-            sourceTargetCounts.incrementCount(source, target, deltaKIJ);
+        // M-step: update probabilities based on updated counts, in place,
+        // measuring how far they moved on the way
+        double maxChange = sourceTargetCounts.conditionalNormalize(t);
+        TranslationTable tPrime = sourceTargetCounts;
+        prune(tPrime);
+        if (isPruning()) {
+          // Shard tables keep their entries when cleared; drop the pairs that no longer collect counts.
+          for (int n = 1; n < buffers.length; n++) {
+            if (buffers[n] != null) {
+              buffers[n].prune(0.0, 0);
+            }
+          }
+          if (sharedCounts != null) {
+            sharedCounts.removeZeroCounts();
           }
-          double deltaKIJ = (i == 0 ? initProb : t.getCount(NULL_WORD, target)) / sumT;
-          sourceTargetCounts.incrementCount(NULL_WORD, target, deltaKIJ);
         }
+        iterationFinished(new IterationStats(getModelName(), i,
+            System.currentTimeMillis() - start, corpus.size(), numTargetWords, tPrime.totalSize(), 0,
+            heapUsed(), logLikelihood, maxChange));
+
+        if (hasConverged(maxChange)) {
+          log("Converged at iteration " + i);
+          break;
+        }
+
+        // The old probabilities hold the next iteration's counts.
+        if (!isForkJoin()) {
+          buffers[0] = t;
+        }
+        t = tPrime;
       }
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+    return t;
+  }
+
+  // EM over a value per slot of a CooccurrenceIndex; the same iterations as
+  // trainTables() without pruning.
+  private TranslationTable trainIndexed(IndexedCorpus corpus) {
+    final CooccurrenceIndex index = CooccurrenceIndex.build(corpus);
+    log("Indexed " + index.numSlots() + " (source, target) pairs");
+    double[] t = new double[index.numSlots()];
+    Arrays.fill(t, 1.0 / corpus.getTargetIndexer().size());
+    // Count arrays of each shard, reused every iteration.
+    final double[][] buffers = new double[getNumThreads()][];
+    final long numTargetWords = countTargetWords(corpus);
+    final double[] logLikelihoods = new double[getNumThreads()];
+    boolean first = true;
+
+    ExecutorService executor = newExecutor();
+    try {
+      for (int i = 0; i < getMaxIterations(); i++) {
+        log("Iteration " + i);
+        long start = System.currentTimeMillis();
+
+        // E-step: gather t over each sentence's slots, scatter the posteriors
+        final double[] tCurrent = t;
+        List<double[]> shards = runShards(executor, corpus, new Shard<double[]>() {
+          public double[] run(int shard, int from, int to) {
+            double[] counts = buffers[shard];
+            if (counts == null) {
+              counts = new double[index.numSlots()];
+            } else {
+              Arrays.fill(counts, 0.0);
+            }
+            logLikelihoods[shard] = expectedCounts(index, from, to, tCurrent, getKernel(), counts);
+            return counts;
+          }
+        });
+        double[] counts = shards.get(0);
+        double logLikelihood = logLikelihoods[0];
+        for (int n = 1; n < shards.size(); n++) {
+          double[] shardCounts = shards.get(n);
+          for (int slot = 0; slot < counts.length; slot++) {
+            counts[slot] += shardCounts[slot];
+          }
+          logLikelihood += logLikelihoods[n];
+          buffers[n] = shardCounts;
+        }
+
+        // M-step, in place
+        double maxChange = index.conditionalNormalize(counts, first ? null : t);
+        first = false;
+        iterationFinished(new IterationStats(getModelName(), i,
+            System.currentTimeMillis() - start, corpus.size(), numTargetWords, index.numSlots(), 0,
+            heapUsed(), logLikelihood, maxChange));
 
-      // M-step: update probabilities based on updated counts
-      CounterMap<String, String> tPrime = Counters.conditionalNormalize(sourceTargetCounts);
+        if (hasConverged(maxChange)) {
+          log("Converged at iteration " + i);
+          break;
+        }
 
-      // Check convergence every 5 iterations
-      if ((i + 1) % 5 == 0 && hasConverged(t, tPrime)) {
-        System.out.println("Converged at iteration " + i);
-        break;
+        // The old probabilities hold the next iteration's counts.
+        buffers[0] = t;
+        t = counts;
       }
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+    return index.toTranslationTable(t);
+  }
+
+  // Expected counts of t collected from part of the corpus.
+  private static class Counts {
+    TranslationTable sourceTargetCounts;
+    // Log-likelihood of the part of the corpus under the current t.
+    double logLikelihood;
+  }
+
+  @Override
+  public void update(List<SentencePair> batch) {
+    if (t == null) {
+      train(batch);
+      return;
+    }
+    long start = System.currentTimeMillis();
+    // Missing pairs of words t was trained on were dropped if t was pruned,
+    // and stay dropped as in train(); the others are new.
+    final int knownSources = t.isPruned() ? sourceIndexer.size() : 0;
+    final int knownTargets = t.isPruned() ? targetIndexer.size() : 0;
+    final IndexedCorpus corpus = schedule(IndexedCorpus.index(batch, sourceIndexer, targetIndexer));
+    // New pairs start out as in the first iteration of train().
+    final double unseen = 1.0 / targetIndexer.size();
+    final double[] logLikelihoods = new double[getNumThreads()];
 
-      t = tPrime;
+    List<TranslationTable> shards;
+    ExecutorService executor = newExecutor();
+    try {
+      shards = runShards(executor, corpus, new Shard<TranslationTable>() {
+        public TranslationTable run(int shard, int from, int to) {
+          TranslationTable counts = new TranslationTable();
+          logLikelihoods[shard] = expectedCounts(corpus, from, to, t, unseen,
+              knownSources, knownTargets, unseen, getKernel(), counts);
+          return counts;
+        }
+      });
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+    TranslationTable counts = shards.get(0);
+    double logLikelihood = logLikelihoods[0];
+    for (int n = 1; n < shards.size(); n++) {
+      counts.incrementAll(shards.get(n));
+      logLikelihood += logLikelihoods[n];
     }
 
-    this.t = t;
+    double stepSize = nextStepSize(corpus.size());
+    t.interpolate(counts, stepSize);
+    prune(t);
+    log(String.format("Online update: %d sentence pairs, step size %.4g, log-likelihood %.2f, %d ms",
+        corpus.size(), stepSize, logLikelihood, System.currentTimeMillis() - start));
   }
 
   /**
-   * Check if the probabilities have converged.
-   * @param t - original probabilities
-   * @param tPrime - updated probabilities
-   * @return true if converged
+   * E-step over sentences [from, to) of the corpus.
+   * @param t - current probabilities, or null to use initProb everywhere
+   * @param knownSources - pairs not in t whose words are both below
+   *        knownSources and knownTargets were pruned: they get t's floor and
+   *        collect no counts
+   * @param knownTargets
+   * @param unseen - probability of the other pairs not in t, or PRUNED
+   * @param kernel - turns each sentence's probabilities into posteriors
+   * @param sourceTargetCounts - receives the expected counts of the (source, target) pairs
+   * @return the log-likelihood of the sentences under t
    */
-  private static boolean hasConverged(CounterMap<String, String> t, CounterMap<String, String> tPrime) {
-    for (String source : t.keySet()) {
-      Counter<String> probs = t.getCounter(source);
-      Counter<String> probsPrime = tPrime.getCounter(source);
+  private static double expectedCounts(IndexedCorpus corpus, int from, int to, TranslationTable t,
+                                     double initProb, int knownSources, int knownTargets,
+                                     double unseen, EStepKernel kernel,
+                                     IntCountAccumulator sourceTargetCounts) {
 
-      for (String target : probs.keySet()) {
-        double prob = probs.getCount(target);
-        double probPrime = probsPrime.getCount(target);
+    double logLikelihood = 0.0;
+    // t of each alignment cell as looked up, which may be PRUNED, and as used
+    double[] probs = null;
+    double[] posteriors = null;
+    double[] sums = null;
+    // for k = 1..n
+    IndexedCorpus.SentenceReader reader = corpus.read(from, to);
+    while (reader.next()) {
+      // source is "French"
+      int[] sourceWords = reader.getSourceSentence();
+      // target is "English"
+      int[] targetWords = reader.getTargetSentence();
+      int width = sourceWords.length + 1;
+      probs = EStepKernel.ensureCapacity(probs, targetWords.length * width);
+      posteriors = EStepKernel.ensureCapacity(posteriors, targetWords.length * width);
+      sums = EStepKernel.ensureCapacity(sums, targetWords.length);
 
-        if (!(prob == probPrime || Math.abs(prob - probPrime) <= EPSILON)) {
-          return false;
+      // Gather t for the whole sentence, one row per target word, NULL last
+      int cell = 0;
+      for (int target : targetWords) {
+        for (int source : sourceWords) {
+          probs[cell] = t == null ? initProb : lookup(t, source, target, knownSources, knownTargets, unseen);
+          posteriors[cell] = probs[cell] == PRUNED ? t.getFloor() : probs[cell];
+          cell++;
         }
+        probs[cell] = t == null ? initProb
+            : lookup(t, IndexedCorpus.NULL_INDEX, target, knownSources, knownTargets, unseen);
+        posteriors[cell] = probs[cell] == PRUNED ? t.getFloor() : probs[cell];
+        cell++;
       }
-    }
+      // Divide each row by $$sum_{j=0}^{l_k} t(e_i^{(k)}|f_j^{(k)})$$
+      kernel.posteriors(posteriors, width, targetWords.length, sums);
+
+      // for i = 1..m_k
+      cell = 0;
+      for (int i = 0; i < targetWords.length; i++) {
+        if (sums[i] == 0.0) {
+          // Every pair was pruned with a zero floor.
+          cell += width;
+          continue;
+        }
+        int target = targetWords[i];
+        // p(e_i|f) = sumT / (l_k + 1)
+        logLikelihood += Math.log(sums[i] / width);
 
-    // Finally!
-    return true;
+        // for j = 0..l_k, incrementing the count unless the pair was pruned
+        for (int source : sourceWords) {
+          if (probs[cell] != PRUNED) {
+            sourceTargetCounts.incrementCount(source, target, posteriors[cell]);
+          }
+          cell++;
+        }
+        if (probs[cell] != PRUNED) {
+          sourceTargetCounts.incrementCount(IndexedCorpus.NULL_INDEX, target, posteriors[cell]);
+        }
+        cell++;
+      }
+    }
+    reader.close();
+    return logLikelihood;
   }
 
   /**
-   * Returns initial uniform probability.
-   * @param trainingData
-   * @return
+   * E-step over sentences [from, to) of a CooccurrenceIndex.
+   * @param t - current probability of each slot
+   * @param kernel - turns each sentence's probabilities into posteriors
+   * @param counts - receives the expected count of each slot
+   * @return the log-likelihood of the sentences under t
    */
-  private double getInitialProbability(List<SentencePair> trainingData) {
-    // Gather all target words
-    Set<String> targetWordSet = new HashSet<>();
-
-    for (SentencePair pair : trainingData) {
-      List<String> targetWords = pair.getTargetWords();
-      targetWordSet.addAll(targetWords);
+  private static double expectedCounts(CooccurrenceIndex index, int from, int to, double[] t,
+                                       EStepKernel kernel, double[] counts) {
+    double logLikelihood = 0.0;
+    double[] posteriors = null;
+    double[] sums = null;
+    for (int k = from; k < to; k++) {
+      int[] slots = index.getSlots(k);
+      int rowLength = index.getRowLength(k);
+      int numRows = slots.length / rowLength;
+      posteriors = EStepKernel.ensureCapacity(posteriors, slots.length);
+      sums = EStepKernel.ensureCapacity(sums, numRows);
+      // One row per target word, the NULL word last
+      for (int j = 0; j < slots.length; j++) {
+        posteriors[j] = t[slots[j]];
+      }
+      kernel.posteriors(posteriors, rowLength, numRows, sums);
+      for (int i = 0; i < numRows; i++) {
+        logLikelihood += Math.log(sums[i] / rowLength);
+      }
+      for (int j = 0; j < slots.length; j++) {
+        counts[slots[j]] += posteriors[j];
+      }
     }
-
-    return 1.0 / targetWordSet.size();
+    return logLikelihood;
   }
 }
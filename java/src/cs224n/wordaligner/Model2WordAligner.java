@@ -1,50 +1,89 @@
 package cs224n.wordaligner;
 
-import cs224n.util.Counter;
-import cs224n.util.CounterMap;
-import cs224n.util.Counters;
-
-import java.util.HashSet;
+import cs224n.util.BinaryIO;
+import cs224n.util.Indexer;
+import cs224n.util.IntCountAccumulator;
+import cs224n.util.StripedIntCounterMap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.Set;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Word aligner using IBM Model 2.
  */
-public class Model2WordAligner implements WordAligner {
+public class Model2WordAligner extends EMWordAligner {
+
+  // Seed for the random initialization of q, so that runs are repeatable.
+  private static final long SEED = 224L;
+
+  // Sentences longer than this share distortion parameters.
+  private int maxLength = DistortionTable.DEFAULT_MAX_LENGTH;
 
-  // Maximum number of iterations.
-  private static final int T = 50;
-  private static final double EPSILON = 1e-4;
+  // Vocabularies mapping words to the indices used by t.
+  private Indexer<String> sourceIndexer;
+  private Indexer<String> targetIndexer;
+  // <Source index, Target index> => Count.
+  private TranslationTable t;
+  // <targetIndex, sourceLength, targetLength, sourceIndex> => Count.
+  private DistortionTable q;
 
-  // <Source, Target> => Count.
-  private CounterMap<String, String> t;
-  // <<targetIndex, sourceLength, targetLength>, sourceIndex> => Count.
-  private CounterMap<String, Integer> q;
 
+  /**
+   * Set the sentence length above which distortion parameters are shared.
+   */
+  public void setMaxLength(int maxLength) {
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Model file layout: source and target vocabularies, t, then q.
+   */
+  @Override
+  protected void writeModel(DataOutputStream out) throws IOException {
+    BinaryIO.writeIndexer(out, sourceIndexer);
+    BinaryIO.writeIndexer(out, targetIndexer);
+    t.writeTo(out);
+    q.writeTo(out);
+  }
+
+  @Override
+  protected void readModel(ByteBuffer in) throws IOException {
+    sourceIndexer = BinaryIO.readIndexer(in);
+    targetIndexer = BinaryIO.readIndexer(in);
+    t = new TranslationTable(0);
+    t.readFrom(in);
+    q = DistortionTable.readFrom(in);
+    maxLength = q.getMaxLength();
+  }
 
   @Override
   public Alignment align(SentencePair sentencePair) {
     Alignment alignment = new Alignment();
 
-    List<String> sourceWords = sentencePair.getSourceWords();
-    List<String> targetWords = sentencePair.getTargetWords();
-    int numSourceWords = sourceWords.size();
-    int numTargetWords = targetWords.size();
+    int[] sourceWords = IndexedCorpus.lookup(sourceIndexer, sentencePair.getSourceWords());
+    int[] targetWords = IndexedCorpus.lookup(targetIndexer, sentencePair.getTargetWords());
+    int numSourceWords = sourceWords.length;
+    int numTargetWords = targetWords.length;
 
     // Find best alignment for each source word
     for (int tgtIndex = 0; tgtIndex < numTargetWords; tgtIndex++) {
-      String target = targetWords.get(tgtIndex);
-      String index = tgtIndex + "," + numSourceWords + "," + numTargetWords;
+      int target = targetWords[tgtIndex];
+      int index = q.offset(tgtIndex, numSourceWords, numTargetWords);
 
       // Match with NULL_WORD.
-      double bestScore = q.getCount(index, numSourceWords) * t.getCount(NULL_WORD, target);
+      double bestScore = q.getCount(index, numSourceWords, numSourceWords)
+          * t.getCount(IndexedCorpus.NULL_INDEX, target);
       int bestIndex = numSourceWords;
 
       // Match with source text.
       for (int srcIndex = 0; srcIndex < numSourceWords; srcIndex++) {
-        String source = sourceWords.get(srcIndex);
-        double score = q.getCount(index, srcIndex) * t.getCount(source, target);
+        double score = q.getCount(index, srcIndex, numSourceWords) * t.getCount(sourceWords[srcIndex], target);
 
         if (score > bestScore) {
           bestScore = score;
@@ -60,99 +99,285 @@ public class Model2WordAligner implements WordAligner {
 
   @Override
   public void train(List<SentencePair> trainingData) {
+    train(IndexedCorpus.index(trainingData));
+  }
+
+  @Override
+  public void train(IndexedCorpus trainingCorpus) {
+    final IndexedCorpus corpus = schedule(trainingCorpus);
     // Initialize t and q.
-    initialize(trainingData);
-
-    // Maximum T iterations.
-    for (int iter = 0; iter < T; iter++) {
-      System.out.println("Iteration# " + iter);
-
-      CounterMap<String, String> sourceTargetCounts = new CounterMap<>();
-      CounterMap<String, Integer> alignmentCounts = new CounterMap<>();
-
-      // For each sentence in the training data.
-      for (SentencePair sentencePair : trainingData) {
-        List<String> sourceWords = sentencePair.sourceWords;
-        List<String> targetWords = sentencePair.targetWords;
-        int numSourceWords = sourceWords.size();
-        int numTargetWords = targetWords.size();
-        String suffix = "," + numSourceWords + "," + numTargetWords;
-
-        for (int i = 0; i < numTargetWords; i++) {
-          double sumQT = 0;
-          String target = targetWords.get(i);
-          String index = i + suffix;
-
-          for (int j = 0; j <= numSourceWords; j++) {
-            String source = j == numSourceWords ? NULL_WORD : sourceWords.get(j);
-            sumQT += q.getCount(index, j) * t.getCount(source, target);
+    initialize(corpus);
+    // Count tables of each shard, cleared and reused every iteration.
+    final Counts[] buffers = new Counts[getNumThreads()];
+    final long numTargetWords = countTargetWords(corpus);
+    // Cleared q count tables for the pieces of fork/join training: each is
+    // as large as q, so pieces reuse the tables of pieces already merged.
+    final Queue<DistortionTable> spareAlignmentCounts = new ConcurrentLinkedQueue<DistortionTable>();
+    // Count table of t all shards add to, if setSharedCounts() is on.
+    final StripedIntCounterMap sharedCounts = newSharedCounts(t.totalSize());
+
+    ExecutorService executor = newExecutor();
+    try {
+      // At most getMaxIterations() iterations.
+      for (int iter = 0; iter < getMaxIterations(); iter++) {
+        log("Iteration# " + iter);
+        long start = System.currentTimeMillis();
+
+        // Each shard collects into its own tables, merged in corpus order;
+        // with fork/join each piece does, merged pairwise.
+        Counts counts;
+        if (isForkJoin()) {
+          counts = forkJoin(executor, corpus, new Reduction<Counts>() {
+            public Counts run(int from, int to) {
+              Counts counts = new Counts();
+              counts.sourceTargetCounts = new TranslationTable();
+              counts.alignmentCounts = spareAlignmentCounts.poll();
+              if (counts.alignmentCounts == null) {
+                counts.alignmentCounts = q.newCounts();
+              }
+              expectedCounts(corpus, from, to, 0, 0, PRUNED, counts.sourceTargetCounts, counts);
+              return counts;
+            }
+
+            public Counts merge(Counts left, Counts right) {
+              left.sourceTargetCounts = mergeCounts(left.sourceTargetCounts, right.sourceTargetCounts);
+              left.alignmentCounts.incrementAll(right.alignmentCounts);
+              right.alignmentCounts.clear();
+              spareAlignmentCounts.add(right.alignmentCounts);
+              left.logLikelihood += right.logLikelihood;
+              return left;
+            }
+          });
+        } else {
+          if (sharedCounts != null) {
+            sharedCounts.clear();
           }
+          List<Counts> shards = runShards(executor, corpus, new Shard<Counts>() {
+            public Counts run(int shard, int from, int to) {
+              Counts counts = buffers[shard];
+              if (counts == null) {
+                counts = new Counts();
+                // With shared counts only shard 0's table fills, from sharedCounts.
+                counts.sourceTargetCounts = new TranslationTable(sharedCounts == null ? t.totalSize() : 0);
+                counts.alignmentCounts = q.newCounts();
+              } else {
+                counts.sourceTargetCounts.clear();
+                counts.alignmentCounts.clear();
+              }
+              counts.logLikelihood = 0.0;
+              expectedCounts(corpus, from, to, 0, 0, PRUNED,
+                  sharedCounts != null ? sharedCounts : counts.sourceTargetCounts, counts);
+              return counts;
+            }
+          });
+          counts = shards.get(0);
+          for (int n = 1; n < shards.size(); n++) {
+            counts.sourceTargetCounts.incrementAll(shards.get(n).sourceTargetCounts);
+            counts.alignmentCounts.incrementAll(shards.get(n).alignmentCounts);
+            counts.logLikelihood += shards.get(n).logLikelihood;
+            buffers[n] = shards.get(n);
+          }
+          if (sharedCounts != null) {
+            sharedCounts.addTo(counts.sourceTargetCounts);
+          }
+        }
 
-          for (int j = 0; j <= numSourceWords; j++) {
-            String source = j == numSourceWords ? NULL_WORD : sourceWords.get(j);
-
-            double deltaKIJ = q.getCount(index, j) * t.getCount(source, target) / sumQT;
-
-            sourceTargetCounts.incrementCount(source, target, deltaKIJ);
-            alignmentCounts.incrementCount(index, j, deltaKIJ);
+        // Normalize the counts in place; they become the new probabilities.
+        // The largest change is measured on the way.
+        double maxChange = Math.max(counts.sourceTargetCounts.conditionalNormalize(t),
+            counts.alignmentCounts.conditionalNormalize(q));
+        TranslationTable tPrime = counts.sourceTargetCounts;
+        DistortionTable qPrime = counts.alignmentCounts;
+        prune(tPrime);
+        if (isPruning()) {
+          // Shard tables keep their entries when cleared; drop the pairs that no longer collect counts.
+          for (int n = 1; n < buffers.length; n++) {
+            if (buffers[n] != null) {
+              buffers[n].sourceTargetCounts.prune(0.0, 0);
+            }
+          }
+          if (sharedCounts != null) {
+            sharedCounts.removeZeroCounts();
           }
         }
-      }
+        iterationFinished(new IterationStats(getModelName(), iter,
+            System.currentTimeMillis() - start, corpus.size(), numTargetWords, tPrime.totalSize(),
+            qPrime.size(), heapUsed(), counts.logLikelihood, maxChange));
 
-      CounterMap<String, String> tPrime = Counters.conditionalNormalize(sourceTargetCounts);
-      CounterMap<String, Integer> qPrime = Counters.conditionalNormalize(alignmentCounts);
+        if (hasConverged(maxChange)) {
+          log("Converged at iteration: " + iter);
+          break;
+        }
 
-      if ((iter + 1) % 5 == 0 && hasConverged(t, tPrime) && hasConverged(q, qPrime)) {
-        System.out.println("Converged at iteration: " + iter);
-        break;
+        // The old probabilities hold the next iteration's counts.
+        if (isForkJoin()) {
+          q.clear();
+          spareAlignmentCounts.add(q);
+        } else {
+          Counts recycled = new Counts();
+          recycled.sourceTargetCounts = t;
+          recycled.alignmentCounts = q;
+          buffers[0] = recycled;
+        }
+        t = tPrime;
+        q = qPrime;
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
       }
+    }
+    setNumTrainingSentences(corpus.size());
+  }
 
-      t = tPrime;
-      q = qPrime;
+  @Override
+  public void update(List<SentencePair> batch) {
+    if (t == null) {
+      train(batch);
+      return;
+    }
+    long start = System.currentTimeMillis();
+    // Missing pairs of words t was trained on were dropped if t was pruned,
+    // and stay dropped as in train(); the others are new.
+    final int knownSources = t.isPruned() ? sourceIndexer.size() : 0;
+    final int knownTargets = t.isPruned() ? targetIndexer.size() : 0;
+    final IndexedCorpus corpus = schedule(IndexedCorpus.index(batch, sourceIndexer, targetIndexer));
+    q = q.extend(corpus);
+    // New pairs start out as in the first iteration of Model 1.
+    final double unseen = 1.0 / targetIndexer.size();
+
+    List<Counts> shards;
+    ExecutorService executor = newExecutor();
+    try {
+      shards = runShards(executor, corpus, new Shard<Counts>() {
+        public Counts run(int shard, int from, int to) {
+          Counts counts = new Counts();
+          counts.sourceTargetCounts = new TranslationTable();
+          counts.alignmentCounts = q.newCounts();
+          expectedCounts(corpus, from, to, knownSources, knownTargets, unseen,
+              counts.sourceTargetCounts, counts);
+          return counts;
+        }
+      });
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+    Counts counts = shards.get(0);
+    for (int n = 1; n < shards.size(); n++) {
+      counts.sourceTargetCounts.incrementAll(shards.get(n).sourceTargetCounts);
+      counts.alignmentCounts.incrementAll(shards.get(n).alignmentCounts);
+      counts.logLikelihood += shards.get(n).logLikelihood;
     }
+
+    double stepSize = nextStepSize(corpus.size());
+    t.interpolate(counts.sourceTargetCounts, stepSize);
+    q.interpolate(counts.alignmentCounts, stepSize);
+    prune(t);
+    log(String.format("Online update: %d sentence pairs, step size %.4g, log-likelihood %.2f, %d ms",
+        corpus.size(), stepSize, counts.logLikelihood, System.currentTimeMillis() - start));
   }
 
-  // Judge if two CounterMap doesn't change during last iteration.
-  private static <A, B> boolean hasConverged(CounterMap<A, B> t, CounterMap<A, B> tPrime) {
-    for (A source : t.keySet()) {
-      Counter<B> probs = t.getCounter(source);
-      Counter<B> probsPrime = tPrime.getCounter(source);
+  // Expected counts of t and q collected from part of the corpus.
+  private static class Counts {
+    TranslationTable sourceTargetCounts;
+    DistortionTable alignmentCounts;
+    // Log-likelihood of the part of the corpus under the current t and q.
+    double logLikelihood;
+    // Scratch matrices of the E-step, reused from sentence to sentence.
+    double[] probs;
+    double[] posteriors;
+    double[] sums;
+  }
 
-      for (B target : probs.keySet()) {
-        double prob = probs.getCount(target);
-        double probPrime = probsPrime.getCount(target);
+  // E-step over sentences [from, to) of the corpus, adding t counts to
+  // sourceTargetCounts and the rest to counts.  Pairs not in t whose words
+  // are both below knownSources and knownTargets were pruned and get t's
+  // floor and no counts; other pairs not in t get probability unseen, which
+  // may also be PRUNED.
+  private void expectedCounts(IndexedCorpus corpus, int from, int to,
+                              int knownSources, int knownTargets, double unseen,
+                              IntCountAccumulator sourceTargetCounts, Counts counts) {
+    EStepKernel kernel = getKernel();
+    // For each sentence in the training data.
+    IndexedCorpus.SentenceReader reader = corpus.read(from, to);
+    while (reader.next()) {
+      int[] sourceWords = reader.getSourceSentence();
+      int[] targetWords = reader.getTargetSentence();
+      int numSourceWords = sourceWords.length;
+      int numTargetWords = targetWords.length;
+      int width = numSourceWords + 1;
+      counts.probs = EStepKernel.ensureCapacity(counts.probs, numTargetWords * width);
+      counts.posteriors = EStepKernel.ensureCapacity(counts.posteriors, numTargetWords * width);
+      counts.sums = EStepKernel.ensureCapacity(counts.sums, numTargetWords);
+      double[] probs = counts.probs;
+      double[] posteriors = counts.posteriors;
+
+      // Gather q * t for the whole sentence, one row per target word.
+      for (int i = 0, cell = 0; i < numTargetWords; i++) {
+        int target = targetWords[i];
+        int index = q.offset(i, numSourceWords, numTargetWords);
+        for (int j = 0; j <= numSourceWords; j++, cell++) {
+          int source = j == numSourceWords ? IndexedCorpus.NULL_INDEX : sourceWords[j];
+          double prob = lookup(t, source, target, knownSources, knownTargets, unseen);
+          probs[cell] = prob;
+          posteriors[cell] = q.getCount(index, j, numSourceWords) * (prob == PRUNED ? t.getFloor() : prob);
+        }
+      }
+      kernel.posteriors(posteriors, width, numTargetWords, counts.sums);
 
-        if (!(prob == probPrime || Math.abs(prob - probPrime) <= EPSILON)) {
-          return false;
+      for (int i = 0, row = 0; i < numTargetWords; i++, row += width) {
+        double sumQT = counts.sums[i];
+        if (sumQT == 0.0) {
+          // Every pair was pruned with a zero floor.
+          continue;
+        }
+        counts.logLikelihood += Math.log(sumQT);
+        int target = targetWords[i];
+        int index = q.offset(i, numSourceWords, numTargetWords);
+
+        for (int j = 0; j <= numSourceWords; j++) {
+          int source = j == numSourceWords ? IndexedCorpus.NULL_INDEX : sourceWords[j];
+          double deltaKIJ = posteriors[row + j];
+          // Pairs pruned from t only count towards q.
+          if (probs[row + j] != PRUNED) {
+            sourceTargetCounts.incrementCount(source, target, deltaKIJ);
+          }
+          counts.alignmentCounts.incrementCount(index, j, numSourceWords, deltaKIJ);
         }
       }
     }
-
-    // Finally!
-    return true;
+    reader.close();
   }
 
-
   // Initialize model 2 parameter using model 1.
-  private void initialize(List<SentencePair> trainingData) {
+  private void initialize(IndexedCorpus corpus) {
     // Use model 1 to train t.
     Model1WordAligner model1 = new Model1WordAligner();
-    model1.train(trainingData);
-    t = model1.getT();
-    q = new CounterMap<>();
+    copySettingsTo(model1);
+    model1.train(corpus);
+    sourceIndexer = corpus.getSourceIndexer();
+    targetIndexer = corpus.getTargetIndexer();
+    t = model1.getTranslationTable();
+    q = DistortionTable.forCorpus(corpus, maxLength);
 
     // Randomly initialize q.
-    for (SentencePair pair : trainingData) {
-      int m = pair.getSourceWords().size();
-      int n = pair.getTargetWords().size();
+    Random random = new Random(SEED);
+    IndexedCorpus.SentenceReader reader = corpus.read();
+    while (reader.next()) {
+      int m = reader.getSourceSentence().length;
+      int n = reader.getTargetSentence().length;
       for (int i = 0; i < n; i++) { // Target.
         for (int j = 0; j <= m; j++) { // Source.
-          q.setCount(i + "," + m + "," + n, j, Math.random());
+          q.setCount(q.offset(i, m, n), j, m, random.nextDouble());
         }
       }
     }
 
+    reader.close();
+
     // Normalize q.
-    q = Counters.conditionalNormalize(q);
+    q = q.conditionalNormalize();
   }
 }
@@ -0,0 +1,54 @@
+package cs224n.wordaligner;
+
+import cs224n.util.BinaryIO;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Header of the model files written by SavableWordAligner.save(): a magic
+ * number, a version and the class name of the aligner.  The parameters
+ * follow in whatever layout the aligner chooses, using BinaryIO.
+ */
+class ModelFile {
+  private static final int MAGIC = 0x43534D31;
+  private static final int VERSION = 1;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private ModelFile() {
+  }
+
+  /**
+   * Creates a model file for the aligner and writes its header.
+   */
+  static DataOutputStream create(File file, SavableWordAligner aligner) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    BinaryIO.writeString(out, aligner.getClass().getName());
+    return out;
+  }
+
+  /**
+   * Maps a model file and checks that it was saved by the same kind of
+   * aligner.
+   *
+   * @return the parameters, positioned after the header
+   */
+  static ByteBuffer open(File file, SavableWordAligner aligner) throws IOException {
+    ByteBuffer in = BinaryIO.map(file);
+    if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+      throw new RuntimeException("Not a model file: " + file);
+    }
+    String model = BinaryIO.readString(in);
+    if (!model.equals(aligner.getClass().getName())) {
+      throw new RuntimeException(file + " holds a " + model + " model, not " + aligner.getClass().getName());
+    }
+    return in;
+  }
+}
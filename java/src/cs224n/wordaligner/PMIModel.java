@@ -1,39 +1,46 @@
 package cs224n.wordaligner;
 
 import cs224n.util.*;
-import org.omg.CORBA.CODESET_INCOMPATIBLE;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
  * Simple word alignment PMI model.
  */
-public class PMIModel implements WordAligner {
+public class PMIModel implements SavableWordAligner {
 
   private static final long serialVersionUID = 1315751943476440515L;
 
-  // From the training data.
-  private Counter<String> sourceCounts;
-  private Counter<String> targetCounts;
-  private CounterMap<String,String> sourceTargetCounts;
+  // Vocabularies mapping words to the indices of the counts.
+  private Indexer<String> sourceIndexer;
+  private Indexer<String> targetIndexer;
+  // From the training data: occurrences of each word, and co-occurrences.
+  private double[] sourceCounts;
+  private double[] targetCounts;
+  private IntCounterMap sourceTargetCounts;
 
   public Alignment align(SentencePair sentencePair) {
     // Predict alignments based on the counts you collected with train().
     Alignment alignment = new Alignment();
     List<String> sourceWords = sentencePair.getSourceWords();
     List<String> targetWords = sentencePair.getTargetWords();
+    int[] sourceIndices = IndexedCorpus.lookup(sourceIndexer, sourceWords);
+    int[] targetIndices = IndexedCorpus.lookup(targetIndexer, targetWords);
     int numSourceWords = sourceWords.size();
     int numTargetWords = targetWords.size();
 
     for (int tgtIndex = 0; tgtIndex < numTargetWords; tgtIndex++) {
-      String tgt = targetWords.get(tgtIndex);
+      int tgtId = targetIndices[tgtIndex];
       // Match with NULL.
-      double bestScore = calculateScore(NULL_WORD, tgt);
+      double bestScore = calculateScore(IndexedCorpus.NULL_INDEX, tgtId);
       int bestIndex = numSourceWords;
       // Match with source text.
       for (int srcIndex = 0; srcIndex < numSourceWords; srcIndex++) {
-        String src = sourceWords.get(srcIndex);
-        double score = calculateScore(src, tgt);
+        double score = calculateScore(sourceIndices[srcIndex], tgtId);
         if (score > bestScore) {
           bestScore = score;
           bestIndex = srcIndex;
@@ -45,37 +52,75 @@ public class PMIModel implements WordAligner {
   }
 
   public void train(List<SentencePair> trainingPairs) {
-    sourceTargetCounts = new CounterMap<String,String>();
-    sourceCounts = new Counter<String>();
-    targetCounts = new Counter<String>();
-    for(SentencePair pair : trainingPairs){
-      List<String> targetWords = pair.getTargetWords();
-      List<String> sourceWords = pair.getSourceWords();
+    IndexedCorpus corpus = IndexedCorpus.index(trainingPairs);
+    sourceIndexer = corpus.getSourceIndexer();
+    targetIndexer = corpus.getTargetIndexer();
+    sourceTargetCounts = new IntCounterMap();
+    sourceCounts = new double[sourceIndexer.size()];
+    targetCounts = new double[targetIndexer.size()];
+    IndexedCorpus.SentenceReader reader = corpus.read();
+    while (reader.next()) {
+      int[] targetWords = reader.getTargetSentence();
+      int[] sourceWords = reader.getSourceSentence();
 
-      // Calculate P(f_j, e_i).
-      for(String target : targetWords){
-        for(String source : sourceWords){
+      // Count the occurrences of f_j, and of NULL once per sentence.
+      for (int source : sourceWords) {
+        sourceCounts[source]++;
+      }
+      sourceCounts[IndexedCorpus.NULL_INDEX]++;
+
+      // Count the occurrences of e_i, and calculate P(f_j, e_i).
+      for (int target : targetWords) {
+        targetCounts[target]++;
+        for (int source : sourceWords) {
           sourceTargetCounts.incrementCount(source, target, 1.0);
         }
-        sourceTargetCounts.incrementCount(NULL_WORD, target, 1.0);
+        sourceTargetCounts.incrementCount(IndexedCorpus.NULL_INDEX, target, 1.0);
       }
+    }
+    reader.close();
+  }
 
-      // Count the occurrences of e_i.
-      for (String source : sourceWords) {
-        sourceCounts.incrementCount(source, 1.0);
-      }
-      sourceCounts.incrementCount(NULL_WORD, 1.0);
+  /**
+   * Model file layout: source and target vocabularies, the word counts in
+   * vocabulary order, then the pair counts.
+   */
+  public void save(File file) {
+    try {
+      DataOutputStream out = ModelFile.create(file, this);
+      BinaryIO.writeIndexer(out, sourceIndexer);
+      BinaryIO.writeIndexer(out, targetIndexer);
+      BinaryIO.writeDoubles(out, sourceCounts);
+      BinaryIO.writeDoubles(out, targetCounts);
+      sourceTargetCounts.writeTo(out);
+      out.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
 
-      // Count the occurrences of f_j.
-      for (String target : targetWords) {
-        targetCounts.incrementCount(target, 1.0);
-      }
+  public void load(File file) {
+    try {
+      ByteBuffer in = ModelFile.open(file, this);
+      sourceIndexer = BinaryIO.readIndexer(in);
+      targetIndexer = BinaryIO.readIndexer(in);
+      sourceCounts = BinaryIO.readDoubles(in);
+      targetCounts = BinaryIO.readDoubles(in);
+      sourceTargetCounts = new IntCounterMap(0);
+      sourceTargetCounts.readFrom(in);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
     }
   }
 
   // Calculate score based on the formula: p(f_j, e_i) / P(f_j) / P(e_i).
-  private double calculateScore(String src, String tgt) {
-    return sourceTargetCounts.getCount(src, tgt) /
-        sourceCounts.getCount(src) / targetCounts.getCount(tgt);
+  // Words not seen in training have index -1 and count zero.
+  private double calculateScore(int srcId, int tgtId) {
+    return sourceTargetCounts.getCount(srcId, tgtId) /
+        count(sourceCounts, srcId) / count(targetCounts, tgtId);
+  }
+
+  private static double count(double[] counts, int id) {
+    return id < 0 ? 0.0 : counts[id];
   }
 }
@@ -0,0 +1,25 @@
+package cs224n.wordaligner;
+
+import java.io.File;
+
+/**
+ * A word aligner whose trained parameters can be written to a model file and
+ * read back, so that a model is trained once and reused by later runs.
+ */
+public interface SavableWordAligner extends WordAligner {
+
+  /**
+   * Write the trained model to a file.
+   *
+   * @param file
+   */
+  public void save(File file);
+
+  /**
+   * Replace the parameters of this aligner by those saved in a file.  The
+   * aligner can then be used without calling train().
+   *
+   * @param file
+   */
+  public void load(File file);
+}
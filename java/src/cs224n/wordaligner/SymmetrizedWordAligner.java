@@ -0,0 +1,278 @@
+package cs224n.wordaligner;
+
+import cs224n.util.BinaryIO;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Aligns in both directions and combines the two alignments, as phrase
+ * extraction expects.  The forward aligner models target words generated by
+ * source words, the backward aligner the reverse; they are trained at the
+ * same time on two threads, each with its own getNumThreads() E-step
+ * workers, so training takes about as long as one direction.
+ *
+ * The alignments are combined by a Heuristic: their intersection (precise),
+ * their union (high recall), or grow-diag-final (Koehn et al., 2003), which
+ * starts from the intersection and adds union links next to it.  Links to
+ * the NULL word are dropped.
+ */
+public class SymmetrizedWordAligner extends EMWordAligner {
+  private static final long serialVersionUID = 6148820519435172953L;
+
+  public enum Heuristic {
+    INTERSECTION, UNION, GROW_DIAG_FINAL;
+
+    /**
+     * Parses a heuristic name such as "grow-diag-final", ignoring case.
+     */
+    public static Heuristic parse(String name) {
+      return valueOf(name.toUpperCase().replace('-', '_'));
+    }
+  }
+
+  private final EMWordAligner forward;
+  private final EMWordAligner backward;
+  private Heuristic heuristic;
+
+  /**
+   * Symmetrizes two Model 2 aligners with grow-diag-final.
+   */
+  public SymmetrizedWordAligner() {
+    this(new Model2WordAligner(), new Model2WordAligner(), Heuristic.GROW_DIAG_FINAL);
+  }
+
+  /**
+   * @param forward - aligns target words to source words
+   * @param backward - aligns source words to target words; trained on the
+   *        reversed corpus
+   * @param heuristic
+   */
+  public SymmetrizedWordAligner(EMWordAligner forward, EMWordAligner backward, Heuristic heuristic) {
+    if (forward == backward) {
+      throw new IllegalArgumentException("The two directions need separate aligners");
+    }
+    this.forward = forward;
+    this.backward = backward;
+    this.heuristic = heuristic;
+  }
+
+  public void setHeuristic(Heuristic heuristic) {
+    this.heuristic = heuristic;
+  }
+
+  public Heuristic getHeuristic() {
+    return heuristic;
+  }
+
+  public EMWordAligner getForward() {
+    return forward;
+  }
+
+  public EMWordAligner getBackward() {
+    return backward;
+  }
+
+  @Override
+  public Alignment align(SentencePair sentencePair) {
+    Alignment forwardAlignment = forward.align(sentencePair);
+    Alignment backwardAlignment = backward.align(reverse(sentencePair));
+    return symmetrize(heuristic, sentencePair.getTargetWords().size(), sentencePair.getSourceWords().size(),
+        forwardAlignment, backwardAlignment);
+  }
+
+  private static SentencePair reverse(SentencePair sentencePair) {
+    return new SentencePair(sentencePair.getSentenceID(), sentencePair.getSourceFile(),
+        sentencePair.getSourceWords(), sentencePair.getTargetWords());
+  }
+
+  @Override
+  public void train(List<SentencePair> trainingData) {
+    train(IndexedCorpus.index(trainingData));
+  }
+
+  /**
+   * Trains the forward aligner on a second thread and the backward aligner on
+   * this one.  Both get this aligner's settings and listeners, and labels
+   * "forward" and "backward" so their iterations can be told apart.
+   */
+  @Override
+  public void train(final IndexedCorpus corpus) {
+    copySettingsTo(forward);
+    copySettingsTo(backward);
+    forward.setLabel(directionLabel("forward"));
+    backward.setLabel(directionLabel("backward"));
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> forwardTraining = executor.submit(new Callable<Void>() {
+        public Void call() {
+          forward.train(corpus);
+          return null;
+        }
+      });
+      backward.train(corpus.reverse());
+      forwardTraining.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+    setNumTrainingSentences(corpus.size());
+  }
+
+  // The direction, after this aligner's own label if it has one.
+  private String directionLabel(String direction) {
+    return getLabel().isEmpty() ? direction : getLabel() + "/" + direction;
+  }
+
+  /**
+   * Updates both directions with a mini-batch, one after the other.
+   */
+  @Override
+  public void update(List<SentencePair> batch) {
+    copySettingsTo(forward);
+    copySettingsTo(backward);
+    forward.setLabel(directionLabel("forward"));
+    backward.setLabel(directionLabel("backward"));
+    List<SentencePair> reversed = new ArrayList<SentencePair>(batch.size());
+    for (SentencePair sentencePair : batch) {
+      reversed.add(reverse(sentencePair));
+    }
+    forward.update(batch);
+    backward.update(reversed);
+    nextStepSize(batch.size());
+  }
+
+  /**
+   * Model file layout, for each direction, forward first: the class name of
+   * its aligner, the number of sentence pairs it was trained on and its
+   * parameters.
+   */
+  @Override
+  protected void writeModel(DataOutputStream out) throws IOException {
+    writeDirection(out, forward);
+    writeDirection(out, backward);
+  }
+
+  private static void writeDirection(DataOutputStream out, EMWordAligner aligner) throws IOException {
+    BinaryIO.writeString(out, aligner.getClass().getName());
+    out.writeLong(aligner.getNumTrainingSentences());
+    aligner.writeModel(out);
+  }
+
+  @Override
+  protected void readModel(ByteBuffer in) throws IOException {
+    readDirection(in, forward);
+    readDirection(in, backward);
+  }
+
+  private static void readDirection(ByteBuffer in, EMWordAligner aligner) throws IOException {
+    String model = BinaryIO.readString(in);
+    if (!model.equals(aligner.getClass().getName())) {
+      throw new RuntimeException("Model file holds a " + model + " direction, not " + aligner.getClass().getName());
+    }
+    aligner.setNumTrainingSentences(in.getLong());
+    aligner.readModel(in);
+  }
+
+  /**
+   * Combines the alignments of a sentence pair in the two directions.
+   *
+   * @param forward - links (target position, source position)
+   * @param backward - links (source position, target position), as produced
+   *        by an aligner of the reversed sentence pair
+   * @return the symmetrized links, as (target position, source position)
+   */
+  public static Alignment symmetrize(Heuristic heuristic, int numTargetWords, int numSourceWords,
+                                     Alignment forward, Alignment backward) {
+    int n = numTargetWords;
+    int m = numSourceWords;
+    // Links of each direction by target * m + source.
+    boolean[] inForward = links(forward.getSureLinks(), n, m, false);
+    boolean[] inBackward = links(backward.getSureLinks(), n, m, true);
+    boolean[] aligned = new boolean[n * m];
+    boolean[] targetAligned = new boolean[n];
+    boolean[] sourceAligned = new boolean[m];
+
+    for (int k = 0; k < n * m; k++) {
+      boolean link = heuristic == Heuristic.UNION ? inForward[k] || inBackward[k] : inForward[k] && inBackward[k];
+      if (link) {
+        aligned[k] = true;
+        targetAligned[k / m] = true;
+        sourceAligned[k % m] = true;
+      }
+    }
+
+    if (heuristic == Heuristic.GROW_DIAG_FINAL) {
+      // Grow-diag: add union links next to a link, diagonals included, that
+      // align a word not yet aligned, until none are left.
+      boolean grown = true;
+      while (grown) {
+        grown = false;
+        for (int i = 0; i < n; i++) {
+          for (int j = 0; j < m; j++) {
+            if (!aligned[i * m + j]) {
+              continue;
+            }
+            for (int ni = Math.max(0, i - 1); ni <= Math.min(n - 1, i + 1); ni++) {
+              for (int nj = Math.max(0, j - 1); nj <= Math.min(m - 1, j + 1); nj++) {
+                int k = ni * m + nj;
+                if (!aligned[k] && (inForward[k] || inBackward[k]) && (!targetAligned[ni] || !sourceAligned[nj])) {
+                  aligned[k] = true;
+                  targetAligned[ni] = true;
+                  sourceAligned[nj] = true;
+                  grown = true;
+                }
+              }
+            }
+          }
+        }
+      }
+      // Final: add the remaining links of each direction that align a word
+      // not yet aligned.
+      for (boolean[] direction : new boolean[][]{inForward, inBackward}) {
+        for (int k = 0; k < n * m; k++) {
+          if (direction[k] && !aligned[k] && (!targetAligned[k / m] || !sourceAligned[k % m])) {
+            aligned[k] = true;
+            targetAligned[k / m] = true;
+            sourceAligned[k % m] = true;
+          }
+        }
+      }
+    }
+
+    Alignment alignment = new Alignment();
+    for (int k = 0; k < n * m; k++) {
+      if (aligned[k]) {
+        alignment.addPredictedAlignment(k / m, k % m);
+      }
+    }
+    return alignment;
+  }
+
+  // Marks links inside the n x m grid, transposing them first if asked;
+  // NULL links fall outside it.
+  private static boolean[] links(LinkSet links, int n, int m, boolean transpose) {
+    boolean[] grid = new boolean[n * m];
+    LinkSet.Cursor cursor = links.cursor();
+    while (cursor.next()) {
+      int i = transpose ? cursor.source() : cursor.target();
+      int j = transpose ? cursor.target() : cursor.source();
+      if (i >= 0 && i < n && j >= 0 && j < m) {
+        grid[i * m + j] = true;
+      }
+    }
+    return grid;
+  }
+}
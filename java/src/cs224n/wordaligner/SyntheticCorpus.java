@@ -0,0 +1,170 @@
+package cs224n.wordaligner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates random parallel sentences from a known alignment, for
+ * benchmarks and scale tests that cannot rely on the real corpora.
+ *
+ * Source words are drawn from a Zipfian distribution over the source
+ * vocabulary.  Each target word is either generated by the NULL word (a
+ * Zipfian draw over the target vocabulary) or aligned to a source position
+ * near the diagonal and generated as a translation of that source word: its
+ * dictionary translation, or with some noise a second, alternative
+ * translation.  Source words are "f" plus a number and target words "e" plus
+ * a number, ranked by frequency.
+ *
+ * The same seed and settings always give the same corpus.
+ */
+public class SyntheticCorpus {
+  private int sourceVocabularySize = 10000;
+  private int targetVocabularySize = 10000;
+  private double zipfExponent = 1.0;
+  private int minLength = 1;
+  private int meanLength = 20;
+  private int maxLength = 60;
+  private double nullProbability = 0.1;
+  private double noise = 0.1;
+
+  private final Random random;
+  private int nextSentenceID = 1;
+  // Cumulative Zipf distributions, built on first use.
+  private double[] sourceDistribution;
+  private double[] targetDistribution;
+
+  public SyntheticCorpus(long seed) {
+    random = new Random(seed);
+  }
+
+  public void setVocabularySizes(int sourceVocabularySize, int targetVocabularySize) {
+    if (sourceVocabularySize < 1 || targetVocabularySize < 1) {
+      throw new IllegalArgumentException("Vocabularies must not be empty");
+    }
+    this.sourceVocabularySize = sourceVocabularySize;
+    this.targetVocabularySize = targetVocabularySize;
+    sourceDistribution = null;
+    targetDistribution = null;
+  }
+
+  /**
+   * Set the exponent s of the Zipf distribution p(rank r) ~ 1 / r^s.
+   */
+  public void setZipfExponent(double zipfExponent) {
+    this.zipfExponent = zipfExponent;
+    sourceDistribution = null;
+    targetDistribution = null;
+  }
+
+  /**
+   * Set the distribution of source sentence lengths: roughly normal around
+   * meanLength, cut to [minLength, maxLength].  Target lengths vary around
+   * the source length.
+   */
+  public void setLengths(int minLength, int meanLength, int maxLength) {
+    if (minLength < 1 || meanLength < minLength || maxLength < meanLength) {
+      throw new IllegalArgumentException("Need 1 <= min <= mean <= max length");
+    }
+    this.minLength = minLength;
+    this.meanLength = meanLength;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Set the probability that a target word is generated by NULL.
+   */
+  public void setNullProbability(double nullProbability) {
+    this.nullProbability = nullProbability;
+  }
+
+  /**
+   * Set the probability that an aligned target word is the alternative
+   * translation of its source word.
+   */
+  public void setNoise(double noise) {
+    this.noise = noise;
+  }
+
+  private static double[] zipf(int size, double exponent) {
+    double[] cumulative = new double[size];
+    double total = 0.0;
+    for (int r = 0; r < size; r++) {
+      total += 1.0 / Math.pow(r + 1, exponent);
+      cumulative[r] = total;
+    }
+    for (int r = 0; r < size; r++) {
+      cumulative[r] /= total;
+    }
+    return cumulative;
+  }
+
+  private int sample(double[] cumulative) {
+    int r = Arrays.binarySearch(cumulative, random.nextDouble());
+    return Math.min(r < 0 ? -r - 1 : r, cumulative.length - 1);
+  }
+
+  private int length(double mean, double deviation) {
+    int length = (int) Math.round(mean + random.nextGaussian() * deviation);
+    return Math.max(minLength, Math.min(maxLength, length));
+  }
+
+  // Dictionary translations of source word f; both are fixed for a given f.
+  private int translation(int f) {
+    return (int) ((f * 0x9E3779B1L) % targetVocabularySize);
+  }
+
+  private int alternative(int f) {
+    return (int) ((f * 0x85EBCA6BL + 1) % targetVocabularySize);
+  }
+
+  /**
+   * Generates the next sentence pair.  Sentence IDs count up from 1.
+   *
+   * @param alignment - receives the true alignment, or null
+   * @return the sentence pair
+   */
+  public SentencePair next(Alignment alignment) {
+    if (sourceDistribution == null) {
+      sourceDistribution = zipf(sourceVocabularySize, zipfExponent);
+      targetDistribution = zipf(targetVocabularySize, zipfExponent);
+    }
+    int m = length(meanLength, meanLength / 3.0);
+    int n = length(m, Math.sqrt(m));
+
+    int[] source = new int[m];
+    List<String> sourceWords = new ArrayList<String>(m);
+    for (int j = 0; j < m; j++) {
+      source[j] = sample(sourceDistribution);
+      sourceWords.add("f" + source[j]);
+    }
+    List<String> targetWords = new ArrayList<String>(n);
+    for (int i = 0; i < n; i++) {
+      if (random.nextDouble() < nullProbability) {
+        targetWords.add("e" + sample(targetDistribution));
+        continue;
+      }
+      // Near the diagonal, within two positions.
+      int j = (int) ((long) i * m / n) + random.nextInt(5) - 2;
+      j = Math.max(0, Math.min(m - 1, j));
+      int e = random.nextDouble() < noise ? alternative(source[j]) : translation(source[j]);
+      targetWords.add("e" + e);
+      if (alignment != null) {
+        alignment.addPredictedAlignment(i, j);
+      }
+    }
+    return new SentencePair(nextSentenceID++, null, targetWords, sourceWords);
+  }
+
+  /**
+   * Generates the next numSentences sentence pairs.
+   */
+  public List<SentencePair> generate(int numSentences) {
+    List<SentencePair> sentencePairs = new ArrayList<SentencePair>(numSentences);
+    for (int k = 0; k < numSentences; k++) {
+      sentencePairs.add(next(null));
+    }
+    return sentencePairs;
+  }
+}
@@ -0,0 +1,15 @@
+package cs224n.wordaligner;
+
+/**
+ * Receives the metrics of every EM iteration, for logging or monitoring.
+ * Register one with EMWordAligner.addTrainingListener().
+ */
+public interface TrainingListener {
+
+  /**
+   * Called on the training thread after the M-step of each iteration.
+   *
+   * @param stats
+   */
+  public void iterationFinished(IterationStats stats);
+}
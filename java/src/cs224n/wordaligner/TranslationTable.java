@@ -0,0 +1,105 @@
+package cs224n.wordaligner;
+
+import cs224n.util.IntCounterMap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Translation probabilities t(target|source) keyed by vocabulary indices:
+ * an IntCounterMap whose keys are source indices and whose values are
+ * target indices.
+ *
+ * A table can be pruned to its most likely entries.  Lookups of pairs that
+ * are not in the table then return a floor probability instead of zero.
+ */
+public class TranslationTable extends IntCounterMap {
+  private static final long serialVersionUID = 4378294710296174362L;
+
+  // Returned by getCount for pairs not in the table.
+  private double floor = 0.0;
+  // Whether pairs have been dropped since the table was last cleared.
+  private boolean pruned = false;
+
+  public TranslationTable() {
+    super();
+  }
+
+  public TranslationTable(int expectedSize) {
+    super(expectedSize);
+  }
+
+  /**
+   * Gets t(target|source), or the floor probability if the pair is not in
+   * the table.
+   */
+  @Override
+  public double getCount(int source, int target) {
+    return getCount(source, target, floor);
+  }
+
+  public double getFloor() {
+    return floor;
+  }
+
+  /**
+   * Returns whether the table has been pruned, so that pairs missing from it
+   * may have been dropped rather than never seen.
+   */
+  public boolean isPruned() {
+    return pruned;
+  }
+
+  /**
+   * Normalizes the counts for each source to sum to one, in place.
+   *
+   * @return this table
+   */
+  @Override
+  public TranslationTable conditionalNormalize() {
+    super.conditionalNormalize();
+    return this;
+  }
+
+  /**
+   * Drops the probabilities below threshold, and all but the topK largest
+   * probabilities of each source word.  The remaining probabilities are not
+   * renormalized; pairs that were dropped get probability floor.
+   *
+   * @param threshold
+   * @param topK - entries to keep per source word, or 0 for no limit
+   * @param floor
+   * @return the number of entries dropped
+   */
+  public int prune(double threshold, int topK, double floor) {
+    this.floor = floor;
+    pruned = true;
+    return prune(threshold, topK);
+  }
+
+  /**
+   * Sets every count to zero and the floor back to zero, so the table can
+   * collect counts again.
+   */
+  @Override
+  public void clear() {
+    super.clear();
+    floor = 0.0;
+    pruned = false;
+  }
+
+  @Override
+  public void writeTo(DataOutputStream out) throws IOException {
+    super.writeTo(out);
+    out.writeDouble(floor);
+    out.writeByte(pruned ? 1 : 0);
+  }
+
+  @Override
+  public void readFrom(ByteBuffer in) {
+    super.readFrom(in);
+    floor = in.getDouble();
+    pruned = in.get() != 0;
+  }
+}
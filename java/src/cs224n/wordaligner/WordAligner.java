@@ -25,6 +25,9 @@ public interface WordAligner extends Serializable {
    * IMPORTANT: Use the Alignment.addPredictedAlignment() method to add model 
    * predictions to the Alignment object.
    * 
+   * Once the model is trained, align() may be called from several threads at
+   * once (see BatchAligner), so it must not modify the model.
+   * 
    * @param sentencePair The sentence pair to align.
    * @return The best alignment according to your model for the given sentence pair.
    */